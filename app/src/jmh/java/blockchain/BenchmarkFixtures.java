@@ -0,0 +1,86 @@
+package blockchain;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+
+// Builds the transactions, wallets and chains the benchmarks run against.
+public class BenchmarkFixtures {
+    public static final int PORT = 8080;
+
+    private BenchmarkFixtures() {
+    }
+
+    public static String fakeHash(int seed) {
+        return String.format("%064x", seed);
+    }
+
+    public static Hash256 fakeId(int seed) {
+        return Hash256.fromHex(fakeHash(seed));
+    }
+
+    public static Wallet newWallet() {
+        KeyPairs keyPairs = new KeyPairs();
+        Wallet wallet = new Wallet(keyPairs.getPrivateKey(), keyPairs.getPublicKey());
+        try {
+            wallet.generateAddress();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 algorithm not available", e);
+        }
+        return wallet;
+    }
+
+    // A transaction spending inputCount outputs of made-up previous transactions,
+    // signed by the wallet the way Wallet.performTransaction signs.
+    public static Transaction signedTransaction(Wallet wallet, KeyPairs keyPairs, int inputCount, int outputCount,
+            int seed) {
+        ArrayList<Input> inputs = new ArrayList<>();
+        for (int i = 0; i < inputCount; i++) {
+            inputs.add(new Input(fakeId(seed * 1000 + i), i, null, keyPairs.getPublicKey()));
+        }
+        ArrayList<Output> outputs = new ArrayList<>();
+        for (int i = 0; i < outputCount; i++) {
+            outputs.add(new Output(Amount.COIN * 3 / 2 + i * Amount.COIN, wallet.getAddress()));
+        }
+        Transaction transaction = new Transaction(inputs, outputs);
+        byte[] signature = transaction.generateDigitalSignature(keyPairs.getPrivateKey());
+        for (Input input : inputs) {
+            input.setDigitalSignature(signature);
+        }
+        return transaction;
+    }
+
+    public static ArrayList<Transaction> transactions(int count) {
+        KeyPairs keyPairs = new KeyPairs();
+        Wallet wallet = new Wallet(keyPairs.getPrivateKey(), keyPairs.getPublicKey());
+        wallet.setAddress("1BenchmarkAddress");
+        ArrayList<Transaction> transactions = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            transactions.add(signedTransaction(wallet, keyPairs, 2, 2, i));
+        }
+        return transactions;
+    }
+
+    // A UTXO pool of poolSize entries where one in ownShare belongs to the wallet.
+    public static UTXOPool utxoPool(int poolSize, int ownShare, String ownAddress) {
+        UTXOPool utxoPool = new UTXOPool();
+        for (int i = 0; i < poolSize; i++) {
+            String address = i % ownShare == 0 ? ownAddress : "1Someone" + (i % 997);
+            utxoPool.addUTXO(new UTXOKey(fakeId(i), i % 4), new UTXO((1 + (i % 50)) * Amount.COIN, address));
+        }
+        return utxoPool;
+    }
+
+    // A chain of blockCount blocks holding transactionsPerBlock signed transactions
+    // each. Blocks are not mined; only their size matters to FileSaver.
+    public static Blockchain blockchain(int blockCount, int transactionsPerBlock) {
+        ArrayList<Transaction> transactions = transactions(transactionsPerBlock);
+        Blockchain blockchain = new Blockchain();
+        for (int i = 0; i < blockCount; i++) {
+            Block block = new Block(fakeId(i), "1BenchmarkMiner", 1700000000000L + i,
+                    new ArrayList<>(transactions), fakeHash(i + 1), fakeId(i + 2), i, Difficulty.INITIAL_BITS);
+            blockchain.addBlock(block);
+            block.setBlockNumber(blockchain.getBlockHeight());
+        }
+        return blockchain;
+    }
+}
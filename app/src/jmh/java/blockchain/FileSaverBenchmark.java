@@ -0,0 +1,51 @@
+package blockchain;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FileSaverBenchmark {
+    @Param({ "1000", "10000" })
+    public int blockCount;
+
+    @Param({ "4" })
+    public int transactionsPerBlock;
+
+    private Blockchain blockchain;
+    private File chainFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        blockchain = BenchmarkFixtures.blockchain(blockCount, transactionsPerBlock);
+        chainFile = File.createTempFile("blockchain-benchmark", ".ser");
+        FileSaver.saveBlockchain(blockchain, chainFile.getPath());
+    }
+
+    @TearDown
+    public void tearDown() {
+        chainFile.delete();
+    }
+
+    @Benchmark
+    public void saveBlockchain() {
+        FileSaver.saveBlockchain(blockchain, chainFile.getPath());
+    }
+
+    @Benchmark
+    public Blockchain loadBlockchain() {
+        return FileSaver.loadBlockchain(chainFile.getPath());
+    }
+}
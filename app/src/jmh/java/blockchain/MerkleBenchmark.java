@@ -0,0 +1,37 @@
+package blockchain;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MerkleBenchmark {
+    private static final String PREVIOUS_HASH = BenchmarkFixtures.fakeHash(1);
+
+    @Param({ "2", "256", "4096" })
+    public int transactionCount;
+
+    private ArrayList<Transaction> transactions;
+    private Mining mining;
+
+    @Setup
+    public void setUp() {
+        transactions = BenchmarkFixtures.transactions(transactionCount);
+        mining = new Mining(PREVIOUS_HASH, "1BenchmarkMiner", new UTXOPool(), 2 * Amount.COIN);
+    }
+
+    @Benchmark
+    public String merkleRootHash() {
+        return mining.merkleRootHash(transactions);
+    }
+}
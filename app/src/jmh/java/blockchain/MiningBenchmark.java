@@ -0,0 +1,36 @@
+package blockchain;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MiningBenchmark {
+    private static final String PREVIOUS_HASH = BenchmarkFixtures.fakeHash(1);
+    private static final String MERKLE_ROOT = BenchmarkFixtures.fakeHash(2);
+    private static final long TIMESTAMP = 1700000000000L;
+
+    // the easiest target retargeting allows, so one search takes tens of thousands of hashes
+    @Param({ "1f010000" })
+    public String difficultyBits;
+
+    @Param({ "SCALAR", "VECTOR" })
+    public String engine;
+
+    // Same header every time, so every invocation searches the same nonces.
+    @Benchmark
+    public String calculateBlockHash() {
+        Mining search = new Mining(PREVIOUS_HASH, "1BenchmarkMiner", new UTXOPool(), 2 * Amount.COIN);
+        search.setDifficultyBits(Integer.parseUnsignedInt(difficultyBits, 16));
+        search.setHashingEngine(HashingEngine.valueOf(engine));
+        return search.calculateBlockHash(PREVIOUS_HASH, TIMESTAMP, MERKLE_ROOT);
+    }
+}
@@ -0,0 +1,59 @@
+package blockchain;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TransactionBenchmark {
+    @Param({ "1", "16", "128" })
+    public int inputCount;
+
+    private Transaction transaction;
+    private ArrayList<Input> inputs;
+    private ArrayList<Output> outputs;
+    private Input firstInput;
+
+    @Setup
+    public void setUp() {
+        KeyPairs keyPairs = new KeyPairs();
+        Wallet wallet = new Wallet(keyPairs.getPrivateKey(), keyPairs.getPublicKey());
+        wallet.setAddress("1BenchmarkAddress");
+        transaction = BenchmarkFixtures.signedTransaction(wallet, keyPairs, inputCount, 2, 1);
+        inputs = transaction.getInputs();
+        outputs = transaction.getOutputs();
+        firstInput = inputs.get(0);
+    }
+
+    // encoding from scratch; getSigningBytes() itself is cached after the first call
+    @Benchmark
+    public byte[] encodeSigningBytes() {
+        return TransactionCodec.encodeSigningBytes(transaction);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return TransactionCodec.encode(transaction);
+    }
+
+    // the constructor computes the transaction hash
+    @Benchmark
+    public Hash256 calculateTransactionHash() {
+        return new Transaction(inputs, outputs).getHash();
+    }
+
+    @Benchmark
+    public boolean verifySignature() {
+        return firstInput.verifySignature(firstInput.getPublicKey(), transaction.getSigningBytes());
+    }
+}
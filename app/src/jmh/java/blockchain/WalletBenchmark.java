@@ -0,0 +1,52 @@
+package blockchain;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class WalletBenchmark {
+    @Param({ "10000", "100000", "1000000" })
+    public int poolSize;
+
+    // one UTXO in this many belongs to the benchmark wallet
+    @Param({ "100" })
+    public int ownShare;
+
+    private Wallet wallet;
+    private WalletServer walletServer;
+    private UTXOPool utxoPool;
+    private Mempool mempool;
+
+    @Setup
+    public void setUp() {
+        wallet = BenchmarkFixtures.newWallet();
+        walletServer = new WalletServer();
+        walletServer.addWallet(BenchmarkFixtures.PORT, wallet);
+        utxoPool = BenchmarkFixtures.utxoPool(poolSize, ownShare, wallet.getAddress());
+        mempool = new Mempool();
+    }
+
+    // coin selection plus signing; the transaction is never added to the mempool,
+    // so every invocation selects from the same pool
+    @Benchmark
+    public Transaction performTransaction() throws NoSuchAlgorithmException {
+        return wallet.performTransaction("1Recipient", 30 * Amount.COIN, mempool, utxoPool, walletServer,
+                BenchmarkFixtures.PORT, false);
+    }
+
+    @Benchmark
+    public long getBalance() {
+        return wallet.getBalance(utxoPool, walletServer, BenchmarkFixtures.PORT);
+    }
+}
@@ -0,0 +1,113 @@
+package blockchain;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Numbers every distinct address in use in this process, so that outputs and
+// UTXOs share one Entry instead of their own copy of a Base58 String, and
+// filtering by address compares ints. Ids are only meaningful inside this
+// process: the wire and serialized forms carry the address string.
+//
+// An id belongs to its address only while something holds the address's Entry.
+// Once the last output, UTXO or wallet holding it is collected the id is
+// reclaimed and handed to the next new address, so addresses seen once in a
+// peer's junk transaction do not stay in the table.
+public class AddressTable {
+    private static final Map<String, EntryReference> IDS = new ConcurrentHashMap<>();
+    private static final List<EntryReference> ENTRIES = new ArrayList<>(); // by id; guarded by itself
+    private static final ArrayDeque<Integer> FREE_IDS = new ArrayDeque<>(); // guarded by ENTRIES
+    private static final ReferenceQueue<Entry> COLLECTED = new ReferenceQueue<>();
+
+    public static final class Entry {
+        private final String address;
+        private final int id;
+
+        private Entry(String address, int id) {
+            this.address = address;
+            this.id = id;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public int getId() {
+            return id;
+        }
+    }
+
+    // remembers which address and id an Entry had once it has been collected
+    private static final class EntryReference extends WeakReference<Entry> {
+        final String address;
+        final int id;
+
+        EntryReference(Entry entry) {
+            super(entry, COLLECTED);
+            this.address = entry.address;
+            this.id = entry.id;
+        }
+    }
+
+    private AddressTable() {
+    }
+
+    // The address's Entry; its id stays the address's for as long as it is held.
+    public static Entry intern(String address) {
+        Entry entry = live(IDS.get(address));
+        if (entry != null) {
+            return entry;
+        }
+        synchronized (ENTRIES) {
+            reclaim();
+            entry = live(IDS.get(address));
+            if (entry != null) {
+                return entry;
+            }
+            Integer free = FREE_IDS.poll();
+            entry = new Entry(address, free == null ? ENTRIES.size() : free);
+            EntryReference reference = new EntryReference(entry);
+            if (free == null) {
+                ENTRIES.add(reference);
+            } else {
+                ENTRIES.set(free, reference);
+            }
+            IDS.put(address, reference);
+            return entry;
+        }
+    }
+
+    // The address holding id, or null if the id is not in use
+    public static String address(int id) {
+        synchronized (ENTRIES) {
+            Entry entry = id < ENTRIES.size() ? live(ENTRIES.get(id)) : null;
+            return entry == null ? null : entry.address;
+        }
+    }
+
+    // number of ids in use
+    public static int size() {
+        synchronized (ENTRIES) {
+            reclaim();
+            return IDS.size();
+        }
+    }
+
+    private static Entry live(EntryReference reference) {
+        return reference == null ? null : reference.get();
+    }
+
+    private static void reclaim() {
+        EntryReference collected;
+        while ((collected = (EntryReference) COLLECTED.poll()) != null) {
+            // the address may have been interned again, under a new id, meanwhile
+            IDS.remove(collected.address, collected);
+            ENTRIES.set(collected.id, null);
+            FREE_IDS.add(collected.id);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package blockchain;
+
+import java.math.BigDecimal;
+
+// Amounts are whole numbers of base units, COIN of them to a coin, so that sums,
+// change and fees are exact. Only the GUI and log output deal in decimal coins.
+public class Amount {
+    public static final long COIN = 100_000_000L;
+    public static final int DECIMALS = 8;
+
+    private Amount() {
+    }
+
+    // "1.5" -> 150000000; more than DECIMALS decimal places or a negative amount is rejected
+    public static long parse(String coins) {
+        BigDecimal value = new BigDecimal(coins.trim());
+        if (value.signum() < 0) {
+            throw new NumberFormatException("Amount must not be negative: " + coins);
+        }
+        try {
+            return value.movePointRight(DECIMALS).longValueExact();
+        } catch (ArithmeticException e) {
+            throw new NumberFormatException("Not a valid amount: " + coins);
+        }
+    }
+
+    // 150000000 -> "1.5"
+    public static String format(long units) {
+        return BigDecimal.valueOf(units, DECIMALS).stripTrailingZeros().toPlainString();
+    }
+}
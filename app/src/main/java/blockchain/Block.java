@@ -1,16 +1,15 @@
 package blockchain;
 
 import java.io.Serializable;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 
 public class Block implements Serializable {
-    private static final long serialVersionUID = 2317709595944805708L;
+    private static final long serialVersionUID = 2317709595944805709L;
     private int blockNumber = 1;
-    private String prevBlockHash;
+    private Hash256 prevBlockHash;
     private long blockTimestamp;
     private int nonce;
+    private int difficultyBits; // compact proof-of-work target, see Difficulty
     private String merkleRoot;
     private ArrayList<Transaction> blockTransactions;
     /*
@@ -25,44 +24,52 @@ public class Block implements Serializable {
     private String minerAddress;
 
     // what we are ultimately trying to work out
-    private String thisBlockHash;
+    private Hash256 thisBlockHash;
 
     public Block(ArrayList<Transaction> genesisTransaction, Mining miner) {
         // Default or placeholder values for the genesis block
-        this.prevBlockHash = "0";
+        this.prevBlockHash = Hash256.ZERO;
         this.minerAddress = miner.getMinerAddress();
         this.blockTimestamp = System.currentTimeMillis();
         this.merkleRoot = miner.merkleRootHash(genesisTransaction);
         this.blockTransactions = genesisTransaction;
-        String combinedString = prevBlockHash + String.valueOf(blockTimestamp) + merkleRoot;
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            // Hash the combined string
-            byte[] hashBytes = md.digest(combinedString.getBytes());
-            String tempBlockHash = miner.byteToString(hashBytes);
-
-            while (!tempBlockHash.substring(0, miner.getDifficulty()).equals("0".repeat(miner.getDifficulty()))) {
-                nonce += 1;
-                combinedString = prevBlockHash + String.valueOf(blockTimestamp) + merkleRoot + String.valueOf(nonce);
-                hashBytes = md.digest(combinedString.getBytes());
-                tempBlockHash = miner.byteToString(hashBytes);
-            }
-
-            this.thisBlockHash = tempBlockHash;
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException("SHA-256 algorithm not available", e);
-        }
-
+        this.difficultyBits = miner.getDifficultyBits();
+        String blockHash = miner.calculateBlockHash(prevBlockHash.toString(), blockTimestamp, merkleRoot);
+        this.thisBlockHash = blockHash == null ? null : Hash256.fromHex(blockHash);
+        this.nonce = miner.getNonce();
     }
 
-    public Block(String previousHash, String miningAddress, long timestamp, ArrayList<Transaction> transactionsInBlock,
-            String merkleRootHash, String BlockHash, int nonce) {
+    public Block(Hash256 previousHash, String miningAddress, long timestamp, ArrayList<Transaction> transactionsInBlock,
+            String merkleRootHash, Hash256 BlockHash, int nonce, int difficultyBits) {
         this.prevBlockHash = previousHash;
         this.minerAddress = miningAddress;
         this.blockTimestamp = timestamp;
         this.merkleRoot = merkleRootHash;
         this.blockTransactions = transactionsInBlock;
         this.thisBlockHash = BlockHash;
+        this.nonce = nonce;
+        this.difficultyBits = difficultyBits;
+    }
+
+    // Everything the proof of work commits to except the nonce, which HeaderHasher
+    // appends in decimal. previousHash is the previous block hash in hex.
+    public static byte[] headerPrefix(String previousHash, long timestamp, String merkleRoot, int difficultyBits) {
+        return (previousHash + String.valueOf(timestamp) + merkleRoot + String.format("%08x", difficultyBits))
+                .getBytes();
+    }
+
+    // Recomputes the header hash and checks it matches the stored hash and meets
+    // the block's own target. Whether that target is the right one for the chain
+    // is checked separately against Difficulty.nextBits.
+    public boolean hasValidProofOfWork() {
+        if (nonce < 0 || thisBlockHash == null) {
+            return false;
+        }
+        HeaderHasher hasher = new HeaderHasher(prevBlockHash.toString(), blockTimestamp, merkleRoot, difficultyBits);
+        if (!hasher.hashMeetsTarget(nonce, Difficulty.toTargetWords(difficultyBits))) {
+            return false;
+        }
+        return hasher.hexDigest().equals(thisBlockHash.toString());
     }
 
     public int getBlockNumber() {
@@ -73,11 +80,11 @@ public class Block implements Serializable {
         this.blockNumber = number;
     }
 
-    public String getPreviousHash() {
+    public Hash256 getPreviousHash() {
         return this.prevBlockHash;
     }
 
-    public String getBlockHash() {
+    public Hash256 getBlockHash() {
         return this.thisBlockHash;
     }
 
@@ -97,6 +104,10 @@ public class Block implements Serializable {
         return this.nonce;
     }
 
+    public int getDifficultyBits() {
+        return this.difficultyBits;
+    }
+
     public ArrayList<Transaction> getBlockTransactions() {
         return this.blockTransactions;
     }
@@ -0,0 +1,65 @@
+package blockchain;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+// A block being mined: everything a miner needs to build headers for it, and
+// the slot the first valid solution goes into. The local nonce search and any
+// remote miners working on the same template race for that slot; whoever fills
+// it stops the rest, and mineBlock turns the solution into the block.
+public class BlockTemplate {
+    private final String previousHash;
+    private final int difficultyBits;
+    private final long timestamp;
+    private final HeaderTemplate headers;
+    private final MiningJob job;
+    private final AtomicReference<ParallelMiner.Solution> winner = new AtomicReference<>();
+
+    public BlockTemplate(String previousHash, int difficultyBits, long timestamp, HeaderTemplate headers,
+            MiningJob job) {
+        this.previousHash = previousHash;
+        this.difficultyBits = difficultyBits;
+        this.timestamp = timestamp;
+        this.headers = headers;
+        this.job = job;
+    }
+
+    public String getPreviousHash() {
+        return this.previousHash;
+    }
+
+    public int getDifficultyBits() {
+        return this.difficultyBits;
+    }
+
+    public long getTimestamp() {
+        return this.timestamp;
+    }
+
+    public HeaderTemplate getHeaders() {
+        return this.headers;
+    }
+
+    public AtomicReference<ParallelMiner.Solution> getWinner() {
+        return this.winner;
+    }
+
+    // no point hashing any further: solved already, or the tip moved on
+    public boolean isStale() {
+        return winner.get() != null || (job != null && job.isCancelled());
+    }
+
+    // Hands a solution found outside the local search (by a remote miner) to this
+    // template. The header is rebuilt and hashed here rather than trusting the
+    // submitter; returns false if it misses the target or the template is stale.
+    public boolean submit(long headerTimestamp, long extraNonce, int nonce) {
+        if (isStale()) {
+            return false;
+        }
+        HeaderHasher hasher = new HeaderHasher(headers.headerPrefix(headerTimestamp, extraNonce));
+        if (!hasher.hashMeetsTarget(nonce, Difficulty.toTargetWords(difficultyBits))) {
+            return false;
+        }
+        return winner.compareAndSet(null,
+                new ParallelMiner.Solution(nonce, hasher.hexDigest(), headerTimestamp, extraNonce));
+    }
+}
@@ -0,0 +1,25 @@
+package blockchain;
+
+import java.util.Map;
+
+// What connecting one block changed in the UTXO set: for every outpoint it
+// touched, the UTXO that was there before. That is the UTXO for an outpoint
+// the block spent, and null for an output the block created. Applying these
+// previous values disconnects the block again, in time proportional to its size.
+public class BlockUndo {
+    private final Hash256 blockHash;
+    private final Map<UTXOKey, UTXO> previousUTXOs;
+
+    public BlockUndo(Hash256 blockHash, Map<UTXOKey, UTXO> previousUTXOs) {
+        this.blockHash = blockHash;
+        this.previousUTXOs = previousUTXOs;
+    }
+
+    public Hash256 getBlockHash() {
+        return this.blockHash;
+    }
+
+    public Map<UTXOKey, UTXO> getPreviousUTXOs() {
+        return this.previousUTXOs;
+    }
+}
@@ -43,6 +43,11 @@ public class BlockchainGUI extends Application {
     public void stop() {
         if (nodeInstance != null) {
             nodeInstance.getTaskExecutorService().shutdownNow();
+            nodeInstance.getParallelMiner().shutdown();
+            nodeInstance.getSignatureVerifier().shutdown();
+            if (nodeInstance.getWorkServer() != null) {
+                nodeInstance.getWorkServer().shutdown();
+            }
             if (nodeInstance.getPeerManager() != null) {
                 nodeInstance.getPeerManager().shutdown();
             }
@@ -245,7 +250,7 @@ public class BlockchainGUI extends Application {
                 String recipientAddress = recipientTextField.getText();
                 // Perform transaction logic here
 
-                double amount = Double.parseDouble(amountTextField.getText());
+                long amount = Amount.parse(amountTextField.getText());
                 // check users exist
                 boolean newAddress = false;
                 boolean high = false;
@@ -0,0 +1,77 @@
+package blockchain;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+// Splits the CPU between hashing and validating what peers send. Mining workers
+// report every chunk they hash and are put to sleep long enough to keep their
+// duty cycle at the mining share (-Dmining.cpuShare, default 1.0: no cap).
+// While a block, chain or transaction is being validated the share drops to
+// -Dmining.validationCpuShare (default 0.25), so validation is not left waiting
+// for cores that are all busy hashing. Validation runs on the thread of the
+// connection it arrived on, which reads nothing more from its peer until it is
+// done, and at most -Dvalidation.slots (default one per core) tasks run at
+// once; how long a task waited for a slot is recorded in MiningStats.
+public class CpuBudget {
+    private final double miningShare;
+    private final double validationMiningShare;
+    private final MiningStats miningStats;
+    private final AtomicInteger validationsInProgress = new AtomicInteger();
+    private final Semaphore validationSlots = new Semaphore(
+            Integer.getInteger("validation.slots", Runtime.getRuntime().availableProcessors()));
+
+    public CpuBudget(MiningStats miningStats) {
+        this(Double.parseDouble(System.getProperty("mining.cpuShare", "1.0")),
+                Double.parseDouble(System.getProperty("mining.validationCpuShare", "0.25")), miningStats);
+    }
+
+    public CpuBudget(double miningShare, double validationMiningShare, MiningStats miningStats) {
+        if (miningShare <= 0 || miningShare > 1 || validationMiningShare <= 0 || validationMiningShare > 1) {
+            throw new IllegalArgumentException("CPU shares must be in (0, 1]");
+        }
+        this.miningShare = miningShare;
+        this.validationMiningShare = validationMiningShare;
+        this.miningStats = miningStats;
+    }
+
+    // share of each core a mining worker may use right now
+    public double getCurrentMiningShare() {
+        if (validationsInProgress.get() > 0) {
+            return Math.min(miningShare, validationMiningShare);
+        }
+        return miningShare;
+    }
+
+    // Called by a mining worker after hashing for busyNanos; sleeps so that
+    // busy / (busy + sleep) matches the current share.
+    public void afterHashing(long busyNanos) {
+        double share = getCurrentMiningShare();
+        if (share < 1) {
+            LockSupport.parkNanos((long) (busyNanos * (1 - share) / share));
+        }
+    }
+
+    // Runs a validation task on the calling thread once a slot is free. Mining
+    // backs off from the moment the task asks for a slot until it has finished.
+    public void validate(Runnable task) {
+        long queuedAt = System.nanoTime();
+        validationsInProgress.incrementAndGet();
+        try {
+            validationSlots.acquireUninterruptibly();
+            long startedAt = System.nanoTime();
+            try {
+                task.run();
+            } finally {
+                validationSlots.release();
+                miningStats.recordValidation(startedAt - queuedAt, System.nanoTime() - startedAt);
+            }
+        } finally {
+            validationsInProgress.decrementAndGet();
+        }
+    }
+
+    public int getValidationsInProgress() {
+        return validationsInProgress.get();
+    }
+}
@@ -0,0 +1,142 @@
+package blockchain;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.List;
+
+// Proof-of-work targets in Bitcoin's compact "nBits" form: the top byte is the
+// target's length in bytes and the low three bytes its most significant digits,
+// so a block is valid when its hash, read as a 256-bit number, is <= the target.
+public class Difficulty {
+    // 2^232: the same work as the six leading hex zeros blocks used to need
+    public static final int INITIAL_BITS = 0x1e010000;
+    // 2^240: retargeting never makes blocks easier than four leading hex zeros
+    public static final int LIMIT_BITS = 0x1f010000;
+
+    // the target is adjusted once every RETARGET_WINDOW blocks
+    public static final int RETARGET_WINDOW = 10;
+    // a single adjustment can change the target by at most this factor
+    private static final int MAX_ADJUSTMENT = 4;
+    // desired time between blocks in milliseconds; -Dmining.blockInterval overrides
+    public static final long BLOCK_INTERVAL = Long.getLong("mining.blockInterval", 30000L);
+    // a block's timestamp must be later than the median of this many blocks below it
+    public static final int MEDIAN_TIME_SPAN = 11;
+    private static final BigInteger TWO_TO_THE_256 = BigInteger.ONE.shiftLeft(256);
+
+    private Difficulty() {
+    }
+
+    public static BigInteger toTarget(int bits) {
+        int size = bits >>> 24;
+        BigInteger mantissa = BigInteger.valueOf(bits & 0x007fffff);
+        if (size <= 3) {
+            return mantissa.shiftRight(8 * (3 - size));
+        }
+        return mantissa.shiftLeft(8 * (size - 3));
+    }
+
+    public static int toBits(BigInteger target) {
+        int size = (target.bitLength() + 7) / 8;
+        long compact;
+        if (size <= 3) {
+            compact = target.longValue() << (8 * (3 - size));
+        } else {
+            compact = target.shiftRight(8 * (size - 3)).longValue();
+        }
+        // the mantissa's top bit is a sign bit, so move a set bit into the next byte
+        if ((compact & 0x00800000L) != 0) {
+            compact >>= 8;
+            size++;
+        }
+        return (int) compact | (size << 24);
+    }
+
+    // The target as eight big-endian words, the layout HeaderHasher keeps its state in.
+    public static int[] toTargetWords(int bits) {
+        byte[] magnitude = toTarget(bits).toByteArray();
+        byte[] padded = new byte[32];
+        int length = Math.min(magnitude.length, 32);
+        System.arraycopy(magnitude, magnitude.length - length, padded, 32 - length, length);
+
+        int[] words = new int[8];
+        for (int i = 0; i < 8; i++) {
+            words[i] = (padded[i * 4] << 24) | ((padded[i * 4 + 1] & 0xff) << 16)
+                    | ((padded[i * 4 + 2] & 0xff) << 8) | (padded[i * 4 + 3] & 0xff);
+        }
+        return words;
+    }
+
+    public static boolean meetsTarget(int[] hashWords, int[] targetWords) {
+        for (int i = 0; i < 8; i++) {
+            if (hashWords[i] != targetWords[i]) {
+                return Integer.compareUnsigned(hashWords[i], targetWords[i]) < 0;
+            }
+        }
+        return true; // equal to the target
+    }
+
+    public static boolean meetsTarget(String blockHash, int bits) {
+        return new BigInteger(blockHash, 16).compareTo(toTarget(bits)) <= 0;
+    }
+
+    // Target the next block on top of this chain has to meet. Every
+    // RETARGET_WINDOW blocks the time the last window actually took is compared
+    // with RETARGET_WINDOW * BLOCK_INTERVAL and the target scaled by the ratio.
+    public static int nextBits(Blockchain blockchain) {
+        return nextBits(blockchain.getChain());
+    }
+
+    // The same for the chain made of blocks, e.g. a prefix of a chain received from a peer
+    public static int nextBits(List<Block> chain) {
+        if (chain.isEmpty()) {
+            return INITIAL_BITS;
+        }
+        Block tip = chain.get(chain.size() - 1);
+        int tipBits = tip.getDifficultyBits() == 0 ? INITIAL_BITS : tip.getDifficultyBits();
+        if (chain.size() % RETARGET_WINDOW != 0 || chain.size() <= RETARGET_WINDOW) {
+            return tipBits;
+        }
+
+        Block windowStart = chain.get(chain.size() - 1 - RETARGET_WINDOW);
+        long expectedTimespan = RETARGET_WINDOW * BLOCK_INTERVAL;
+        long actualTimespan = tip.getTimeStamp() - windowStart.getTimeStamp();
+        actualTimespan = Math.max(actualTimespan, expectedTimespan / MAX_ADJUSTMENT);
+        actualTimespan = Math.min(actualTimespan, expectedTimespan * MAX_ADJUSTMENT);
+
+        BigInteger newTarget = toTarget(tipBits)
+                .multiply(BigInteger.valueOf(actualTimespan))
+                .divide(BigInteger.valueOf(expectedTimespan));
+        BigInteger limit = toTarget(LIMIT_BITS);
+        if (newTarget.compareTo(limit) > 0) {
+            newTarget = limit;
+        }
+        return toBits(newTarget);
+    }
+
+    // Expected number of hashes it takes to meet bits' target: 2^256 / (target + 1)
+    public static BigInteger work(int bits) {
+        return TWO_TO_THE_256.divide(toTarget(bits).add(BigInteger.ONE));
+    }
+
+    // The work of all of chain's blocks; the chain with the most is the one to follow,
+    // however many blocks it has
+    public static BigInteger chainWork(List<Block> chain) {
+        BigInteger total = BigInteger.ZERO;
+        for (Block block : chain) {
+            int bits = block.getDifficultyBits() == 0 ? INITIAL_BITS : block.getDifficultyBits();
+            total = total.add(work(bits));
+        }
+        return total;
+    }
+
+    // Median timestamp of the last MEDIAN_TIME_SPAN blocks of chain, which must not be empty
+    public static long medianTimePast(List<Block> chain) {
+        int span = Math.min(chain.size(), MEDIAN_TIME_SPAN);
+        long[] timestamps = new long[span];
+        for (int i = 0; i < span; i++) {
+            timestamps[i] = chain.get(chain.size() - span + i).getTimeStamp();
+        }
+        Arrays.sort(timestamps);
+        return timestamps[span / 2];
+    }
+}
@@ -3,10 +3,15 @@ package blockchain;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InvalidClassException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.HashMap;
 
+// Files written before blocks, transactions and UTXOs changed format (long
+// amounts, Hash256 hashes, AddressTable addresses) fail their class's
+// serialVersionUID check; they are reported and treated as missing, so the
+// blockchain is fetched or created afresh and the UTXO set rebuilt from it.
 public class FileSaver {
 
     public static <K, V> void saveHashMap(HashMap<K, V> hashMap, String fileName) {
@@ -31,6 +36,8 @@ public class FileSaver {
                 System.err.println("Error: Loaded object is not of type HashMap<K, V>");
             }
             System.out.println("HashMap loaded from " + fileName);
+        } catch (InvalidClassException e) {
+            reportOldFormat(fileName, e);
         } catch (IOException | ClassNotFoundException e) {
             e.printStackTrace();
         }
@@ -43,6 +50,9 @@ public class FileSaver {
                 ObjectInputStream in = new ObjectInputStream(fileIn)) {
             blockchain = (Blockchain) in.readObject();
             System.out.println("Blockchain loaded from " + filename);
+        } catch (InvalidClassException e) {
+            reportOldFormat(filename, e);
+            return null;
         } catch (IOException i) {
             i.printStackTrace();
             return null;
@@ -63,4 +73,9 @@ public class FileSaver {
             e.printStackTrace();
         }
     }
+
+    private static void reportOldFormat(String fileName, InvalidClassException e) {
+        System.err.println(fileName + " was saved by an older version and cannot be read (" + e.getMessage()
+                + "); ignoring it, its data will be regenerated.");
+    }
 }
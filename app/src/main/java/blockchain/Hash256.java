@@ -0,0 +1,149 @@
+package blockchain;
+
+import java.io.Serializable;
+
+// An immutable 32-byte hash (transaction id, block hash) held as four longs,
+// big-endian, instead of a 64-character hex String. Equality compares the four
+// words and the hash code is computed once. toString() gives the usual
+// lower-case hex, so logs and the GUI show hashes as before.
+public final class Hash256 implements Serializable {
+    private static final long serialVersionUID = 2317709595944805708L;
+
+    public static final int SIZE = 32;
+    public static final Hash256 ZERO = new Hash256(0, 0, 0, 0);
+
+    private final long word0;
+    private final long word1;
+    private final long word2;
+    private final long word3;
+    private transient int hashCode;
+
+    private Hash256(long word0, long word1, long word2, long word3) {
+        this.word0 = word0;
+        this.word1 = word1;
+        this.word2 = word2;
+        this.word3 = word3;
+        // the words are already uniformly distributed hash output
+        this.hashCode = (int) (word0 ^ (word0 >>> 32));
+    }
+
+    public static Hash256 fromBytes(byte[] bytes) {
+        if (bytes.length != SIZE) {
+            throw new IllegalArgumentException("A hash is " + SIZE + " bytes, not " + bytes.length);
+        }
+        return fromBytes(bytes, 0);
+    }
+
+    public static Hash256 fromBytes(byte[] bytes, int offset) {
+        return new Hash256(readLong(bytes, offset), readLong(bytes, offset + 8), readLong(bytes, offset + 16),
+                readLong(bytes, offset + 24));
+    }
+
+    public static Hash256 fromHex(String hex) {
+        if (!isHex(hex)) {
+            throw new IllegalArgumentException("Not a 32-byte hex hash: " + hex);
+        }
+        return new Hash256(Long.parseUnsignedLong(hex.substring(0, 16), 16),
+                Long.parseUnsignedLong(hex.substring(16, 32), 16),
+                Long.parseUnsignedLong(hex.substring(32, 48), 16),
+                Long.parseUnsignedLong(hex.substring(48, 64), 16));
+    }
+
+    // the four big-endian words, for stores that keep hashes outside the heap
+    static Hash256 fromWords(long word0, long word1, long word2, long word3) {
+        return new Hash256(word0, word1, word2, word3);
+    }
+
+    long word(int i) {
+        switch (i) {
+            case 0:
+                return word0;
+            case 1:
+                return word1;
+            case 2:
+                return word2;
+            case 3:
+                return word3;
+            default:
+                throw new IndexOutOfBoundsException("A hash has 4 words, not " + i);
+        }
+    }
+
+    public static boolean isHex(String hex) {
+        if (hex == null || hex.length() != SIZE * 2) {
+            return false;
+        }
+        for (int i = 0; i < hex.length(); i++) {
+            if (Character.digit(hex.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public byte[] toBytes() {
+        byte[] bytes = new byte[SIZE];
+        writeTo(bytes, 0);
+        return bytes;
+    }
+
+    public void writeTo(byte[] dst, int offset) {
+        writeLong(dst, offset, word0);
+        writeLong(dst, offset + 8, word1);
+        writeLong(dst, offset + 16, word2);
+        writeLong(dst, offset + 24, word3);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Hash256)) {
+            return false;
+        }
+        Hash256 other = (Hash256) o;
+        return word0 == other.word0 && word1 == other.word1 && word2 == other.word2 && word3 == other.word3;
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder hex = new StringBuilder(SIZE * 2);
+        appendHex(hex, word0);
+        appendHex(hex, word1);
+        appendHex(hex, word2);
+        appendHex(hex, word3);
+        return hex.toString();
+    }
+
+    // the hash code is not serialized
+    private Object readResolve() {
+        return new Hash256(word0, word1, word2, word3);
+    }
+
+    private static void appendHex(StringBuilder hex, long word) {
+        for (int shift = 60; shift >= 0; shift -= 4) {
+            hex.append(Character.forDigit((int) (word >>> shift) & 0xf, 16));
+        }
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    private static void writeLong(byte[] bytes, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            bytes[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package blockchain;
+
+// The nonce scanners a miner can hash with. SCALAR runs one SHA-256 at a time;
+// VECTOR runs one per SIMD lane through the incubating Vector API and needs the
+// JVM to be started with --add-modules jdk.incubator.vector.
+public enum HashingEngine {
+    SCALAR {
+        @Override
+        public NonceScanner newScanner(byte[] headerPrefix, int[] targetWords) {
+            return new ScalarNonceScanner(headerPrefix, targetWords);
+        }
+
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+    },
+    VECTOR {
+        @Override
+        public NonceScanner newScanner(byte[] headerPrefix, int[] targetWords) {
+            return new VectorNonceScanner(headerPrefix, targetWords);
+        }
+
+        // The Vector API module may be missing, and lane-wise hashing is only
+        // trusted once it has reproduced the scalar digests on this machine.
+        @Override
+        public boolean isAvailable() {
+            if (vectorAvailable == null) {
+                try {
+                    vectorAvailable = VectorNonceScanner.selfTest();
+                } catch (LinkageError e) {
+                    vectorAvailable = false;
+                }
+            }
+            return vectorAvailable;
+        }
+    };
+
+    private static volatile Boolean vectorAvailable;
+
+    public abstract NonceScanner newScanner(byte[] headerPrefix, int[] targetWords);
+
+    public abstract boolean isAvailable();
+
+    // Engine named by -Dmining.engine: scalar, vector, or auto (the default), which
+    // picks VECTOR whenever it is available. An engine that cannot run here falls
+    // back to SCALAR.
+    public static HashingEngine configured() {
+        String name = System.getProperty("mining.engine", "auto");
+        if (name.equalsIgnoreCase("auto")) {
+            return VECTOR.isAvailable() ? VECTOR : SCALAR;
+        }
+        HashingEngine engine;
+        try {
+            engine = valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown mining engine " + name + ", using scalar hashing.");
+            return SCALAR;
+        }
+        if (!engine.isAvailable()) {
+            System.err.println("Mining engine " + name + " is not available, using scalar hashing.");
+            return SCALAR;
+        }
+        return engine;
+    }
+}
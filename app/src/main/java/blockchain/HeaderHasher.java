@@ -0,0 +1,182 @@
+package blockchain;
+
+// Proof-of-work hasher for one block header. The header preimage is the fixed
+// prefix built by Block.headerPrefix followed by the decimal nonce. Every complete 64-byte SHA-256 block of
+// the prefix is compressed once up front (the midstate); each nonce then only
+// copies that midstate, writes its digits into a preallocated tail buffer and
+// compresses the last one or two blocks. Nothing is allocated per hash.
+public class HeaderHasher {
+    static final int[] K = {
+            0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+            0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+            0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+            0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+            0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+            0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+            0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+            0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2 };
+
+    private static final int[] INITIAL_STATE = {
+            0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19 };
+
+    // Integer.MAX_VALUE has ten decimal digits
+    private static final int MAX_NONCE_DIGITS = 10;
+
+    private final int[] midstate = new int[8];
+    private final int[] state = new int[8];
+    private final int[] schedule = new int[64];
+    private final byte[] tail = new byte[128];
+    private final int tailPrefixLength;
+    private final long prefixLength;
+    private int paddedDigits = -1; // digit count the padding in tail was last laid out for
+    private int tailLength;
+
+    public HeaderHasher(byte[] prefix) {
+        this.prefixLength = prefix.length;
+        System.arraycopy(INITIAL_STATE, 0, midstate, 0, 8);
+        int completeBlocks = prefix.length / 64;
+        for (int block = 0; block < completeBlocks; block++) {
+            compress(midstate, prefix, block * 64, schedule);
+        }
+        this.tailPrefixLength = prefix.length - completeBlocks * 64;
+        System.arraycopy(prefix, completeBlocks * 64, tail, 0, tailPrefixLength);
+    }
+
+    public HeaderHasher(String previousHash, long timestamp, String merkleRoot, int difficultyBits) {
+        this(Block.headerPrefix(previousHash, timestamp, merkleRoot, difficultyBits));
+    }
+
+    // Hashes the header with the given nonce (which must not be negative) and
+    // reports whether the digest, as a 256-bit number, is <= the target.
+    public boolean hashMeetsTarget(int nonce, int[] targetWords) {
+        hash(nonce);
+        return Difficulty.meetsTarget(state, targetWords);
+    }
+
+    public void hash(int nonce) {
+        int blocks = writeTail(nonce);
+        System.arraycopy(midstate, 0, state, 0, 8);
+        compress(state, tail, 0, schedule);
+        if (blocks == 2) {
+            compress(state, tail, 64, schedule);
+        }
+    }
+
+    // Writes the nonce's digits (and, when the digit count changes, the padding)
+    // into the tail buffer and returns how many 64-byte blocks the tail spans.
+    private int writeTail(int nonce) {
+        int digits = digitCount(nonce);
+        if (digits != paddedDigits) {
+            layOutPadding(digits);
+        }
+        int position = tailPrefixLength + digits;
+        do {
+            tail[--position] = (byte) ('0' + nonce % 10);
+            nonce /= 10;
+        } while (nonce != 0);
+        return tailLength / 64;
+    }
+
+    // The tail block(s) for this nonce as big-endian message words, for engines
+    // that run the compression themselves. Returns the number of blocks written.
+    int writeTailWords(int nonce, int[] words) {
+        int blocks = writeTail(nonce);
+        for (int t = 0; t < blocks * 16; t++) {
+            words[t] = readWord(tail, t * 4);
+        }
+        return blocks;
+    }
+
+    int[] getMidstate() {
+        return this.midstate;
+    }
+
+    int[] getState() {
+        return this.state;
+    }
+
+    static int digitCount(int nonce) {
+        int digits = 1;
+        for (long limit = 10; digits < MAX_NONCE_DIGITS && nonce >= limit; limit *= 10) {
+            digits++;
+        }
+        return digits;
+    }
+
+    // Digest of the most recent hash(nonce) call, in the byte order MessageDigest uses.
+    public byte[] digest() {
+        byte[] digest = new byte[32];
+        for (int i = 0; i < 8; i++) {
+            digest[i * 4] = (byte) (state[i] >>> 24);
+            digest[i * 4 + 1] = (byte) (state[i] >>> 16);
+            digest[i * 4 + 2] = (byte) (state[i] >>> 8);
+            digest[i * 4 + 3] = (byte) state[i];
+        }
+        return digest;
+    }
+
+    public String hexDigest() {
+        StringBuilder hexString = new StringBuilder(64);
+        for (byte b : digest()) {
+            hexString.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hexString.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hexString.toString();
+    }
+
+    private void layOutPadding(int digits) {
+        int messageEnd = tailPrefixLength + digits;
+        tailLength = messageEnd + 1 + 8 <= 64 ? 64 : 128;
+        tail[messageEnd] = (byte) 0x80;
+        for (int i = messageEnd + 1; i < tailLength - 8; i++) {
+            tail[i] = 0;
+        }
+        long bitLength = (prefixLength + digits) * 8;
+        for (int i = 0; i < 8; i++) {
+            tail[tailLength - 1 - i] = (byte) (bitLength >>> (8 * i));
+        }
+        paddedDigits = digits;
+    }
+
+    private static int readWord(byte[] bytes, int i) {
+        return (bytes[i] << 24) | ((bytes[i + 1] & 0xff) << 16) | ((bytes[i + 2] & 0xff) << 8) | (bytes[i + 3] & 0xff);
+    }
+
+    static void compress(int[] state, byte[] block, int offset, int[] w) {
+        for (int t = 0; t < 16; t++) {
+            w[t] = readWord(block, offset + t * 4);
+        }
+        for (int t = 16; t < 64; t++) {
+            int s0 = Integer.rotateRight(w[t - 15], 7) ^ Integer.rotateRight(w[t - 15], 18) ^ (w[t - 15] >>> 3);
+            int s1 = Integer.rotateRight(w[t - 2], 17) ^ Integer.rotateRight(w[t - 2], 19) ^ (w[t - 2] >>> 10);
+            w[t] = w[t - 16] + s0 + w[t - 7] + s1;
+        }
+
+        int a = state[0], b = state[1], c = state[2], d = state[3];
+        int e = state[4], f = state[5], g = state[6], h = state[7];
+        for (int t = 0; t < 64; t++) {
+            int s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25);
+            int ch = (e & f) ^ (~e & g);
+            int temp1 = h + s1 + ch + K[t] + w[t];
+            int s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22);
+            int maj = (a & b) ^ (a & c) ^ (b & c);
+            int temp2 = s0 + maj;
+            h = g;
+            g = f;
+            f = e;
+            e = d + temp1;
+            d = c;
+            c = b;
+            b = a;
+            a = temp1 + temp2;
+        }
+        state[0] += a;
+        state[1] += b;
+        state[2] += c;
+        state[3] += d;
+        state[4] += e;
+        state[5] += f;
+        state[6] += g;
+        state[7] += h;
+    }
+}
@@ -0,0 +1,9 @@
+package blockchain;
+
+// A block template whose header can still be varied outside the nonce. When a
+// miner has hashed all 2^31 nonces of one header it asks for the next
+// (timestamp, extraNonce) pair; the extra-nonce goes into the miner reward
+// transaction, so every pair has its own merkle root and nonce space.
+public interface HeaderTemplate {
+    byte[] headerPrefix(long timestamp, long extraNonce);
+}
@@ -0,0 +1,47 @@
+package blockchain;
+
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+// The default store: UTXOs on the heap, saved by serializing a copy of the map.
+public class HeapUTXOStore implements UTXOStore {
+    private final ConcurrentHashMap<UTXOKey, UTXO> utxoMap;
+
+    public HeapUTXOStore() {
+        this.utxoMap = new ConcurrentHashMap<>();
+    }
+
+    public HeapUTXOStore(HashMap<UTXOKey, UTXO> utxoMap) {
+        this.utxoMap = new ConcurrentHashMap<>(utxoMap);
+    }
+
+    @Override
+    public UTXO get(UTXOKey utxoKey) {
+        return utxoMap.get(utxoKey);
+    }
+
+    @Override
+    public void put(UTXOKey utxoKey, UTXO utxo) {
+        utxoMap.put(utxoKey, utxo);
+    }
+
+    @Override
+    public void remove(UTXOKey utxoKey) {
+        utxoMap.remove(utxoKey);
+    }
+
+    @Override
+    public int size() {
+        return utxoMap.size();
+    }
+
+    @Override
+    public void forEach(BiConsumer<UTXOKey, UTXO> action) {
+        utxoMap.forEach(action);
+    }
+
+    @Override
+    public void flush() {
+    }
+}
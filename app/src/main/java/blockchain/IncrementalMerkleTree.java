@@ -0,0 +1,100 @@
+package blockchain;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+// A merkle tree that stays built while a block template changes. Appending a
+// leaf or replacing one only rehashes the nodes on its path to the root, so it
+// costs log2(leaves) hashes instead of rebuilding the tree. Roots are the same
+// as MerkleTree's for the same leaves: the last node of an odd level is paired
+// with itself. Not thread-safe.
+public class IncrementalMerkleTree {
+    private static final int HASH_SIZE = MerkleTree.HASH_SIZE;
+
+    private byte[][] levels = new byte[1][];
+    private int[] counts = new int[1];
+
+    public IncrementalMerkleTree() {
+        levels[0] = new byte[16 * HASH_SIZE];
+    }
+
+    public IncrementalMerkleTree(Iterable<Transaction> transactions) {
+        this();
+        for (Transaction transaction : transactions) {
+            append(transaction.getHashBytes());
+        }
+    }
+
+    public int getLeafCount() {
+        return counts[0];
+    }
+
+    // returns the index of the new leaf
+    public int append(byte[] leaf) {
+        int index = counts[0];
+        for (int level = 0, node = index; level < levels.length; level++, node >>>= 1) {
+            if (node == counts[level]) {
+                counts[level]++;
+                if (levels[level].length < counts[level] * HASH_SIZE) {
+                    levels[level] = Arrays.copyOf(levels[level], levels[level].length * 2);
+                }
+            }
+        }
+        System.arraycopy(leaf, 0, levels[0], index * HASH_SIZE, HASH_SIZE);
+        updatePath(index);
+        while (counts[levels.length - 1] > 1) {
+            addLevel();
+        }
+        return index;
+    }
+
+    public void replace(int index, byte[] leaf) {
+        if (index < 0 || index >= counts[0]) {
+            throw new IndexOutOfBoundsException("No leaf " + index + " in a tree of " + counts[0]);
+        }
+        System.arraycopy(leaf, 0, levels[0], index * HASH_SIZE, HASH_SIZE);
+        updatePath(index);
+    }
+
+    // an empty tree has an all-zero root
+    public byte[] getRoot() {
+        int top = levels.length - 1;
+        if (counts[top] == 0) {
+            return new byte[HASH_SIZE];
+        }
+        return Arrays.copyOf(levels[top], HASH_SIZE);
+    }
+
+    public String getRootHex() {
+        return MerkleTree.toHex(getRoot(), 0);
+    }
+
+    private void addLevel() {
+        int top = levels.length;
+        levels = Arrays.copyOf(levels, top + 1);
+        counts = Arrays.copyOf(counts, top + 1);
+        counts[top] = (counts[top - 1] + 1) / 2;
+        levels[top] = new byte[Math.max(levels[top - 1].length / 2, HASH_SIZE)];
+        // the level below is fully built, so hash it once; later changes only touch single paths
+        MessageDigest digest = MerkleTree.digest();
+        for (int node = 0; node < counts[top]; node++) {
+            hashChildren(digest, top, node);
+        }
+    }
+
+    private void updatePath(int index) {
+        MessageDigest digest = MerkleTree.digest();
+        int node = index;
+        for (int level = 1; level < levels.length; level++) {
+            node >>>= 1;
+            hashChildren(digest, level, node);
+        }
+    }
+
+    private void hashChildren(MessageDigest digest, int level, int node) {
+        byte[] children = levels[level - 1];
+        int left = node * 2;
+        int right = Math.min(left + 1, counts[level - 1] - 1);
+        MerkleTree.hashPair(digest, children, left, children, right, levels[level], node);
+    }
+}
@@ -2,33 +2,61 @@ package blockchain;
 
 import java.io.Serializable;
 import java.security.PublicKey;
-import java.security.Signature;
 
 public class Input implements Serializable {
-    private static final long serialVersionUID = 2317709595944805708L;
+    private static final long serialVersionUID = 2317709595944805709L;
 
-    private String transactionId;
+    private Hash256 transactionId; // Hash256.ZERO for coinbase inputs
+    // what a coinbase input is ("genesis", "reward<height>"); null for inputs that
+    // spend an output
+    private String coinbaseData;
     private int outputIndex;
-    private byte[] digitalSignature; // This will store the actual signature bytes
+    private byte[] digitalSignature; // usually the transaction's own signature array, shared rather than copied
     private PublicKey publicKey;
+    // only set on miner reward inputs; changing it changes the transaction id and
+    // so the merkle root, which gives the miner a fresh nonce space for the same
+    // block template
+    private long extraNonce;
 
-    public Input(String prevTxId, int outputIndex, byte[] digitalSignature, PublicKey publicKey) {
+    public Input(Hash256 prevTxId, int outputIndex, byte[] digitalSignature, PublicKey publicKey) {
         this.transactionId = prevTxId;
         this.outputIndex = outputIndex;
         this.digitalSignature = digitalSignature;
-        this.publicKey = publicKey;
+        this.publicKey = publicKey == null ? null : PublicKeyTable.intern(publicKey);
     }
 
-    public String getTxId() {
+    // A coinbase input: it spends no output and creates coins, tagged by coinbaseData.
+    public Input(String coinbaseData, int outputIndex, byte[] digitalSignature, PublicKey publicKey) {
+        this(Hash256.ZERO, outputIndex, digitalSignature, publicKey);
+        this.coinbaseData = coinbaseData;
+    }
+
+    public Hash256 getTxId() {
         return this.transactionId;
     }
 
+    public String getCoinbaseData() {
+        return this.coinbaseData;
+    }
+
+    public boolean isCoinbase() {
+        return this.coinbaseData != null;
+    }
+
+    public boolean isMinerReward() {
+        return isCoinbase() && coinbaseData.startsWith("reward");
+    }
+
+    public boolean isGenesis() {
+        return isCoinbase() && coinbaseData.equals("genesis");
+    }
+
     public PublicKey getPublicKey() {
         return this.publicKey;
     }
 
     public void setPublicKey(PublicKey publicKey) {
-        this.publicKey = publicKey;
+        this.publicKey = publicKey == null ? null : PublicKeyTable.intern(publicKey);
     }
 
     public int getOutputIndex() {
@@ -43,23 +71,17 @@ public class Input implements Serializable {
         return this.digitalSignature;
     }
 
-    public String getInputDataAsString() {
-        return this.transactionId + Integer.toString(this.outputIndex);
+    public long getExtraNonce() {
+        return this.extraNonce;
+    }
+
+    public void setExtraNonce(long extraNonce) {
+        this.extraNonce = extraNonce;
     }
 
-    public boolean verifySignature(PublicKey publicKey, String transactionString) {
-        try {
-            // Prepare a Signature object for verification
-            Signature signature = Signature.getInstance("SHA256withECDSA");
-            signature.initVerify(publicKey);
-            signature.update(transactionString.getBytes()); // Update the signature with the original data
-
-            // Verify the signature directly with the binary digital signature
-            return signature.verify(this.digitalSignature);
-        } catch (Exception e) {
-            e.printStackTrace();
-            return false;
-        }
+    // message: the transaction's signing bytes (Transaction.getSigningBytes)
+    public boolean verifySignature(PublicKey publicKey, byte[] message) {
+        return SignatureVerifier.verify(publicKey, message, this.digitalSignature);
     }
 
 }
@@ -0,0 +1,476 @@
+package blockchain;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+
+// UTXOs in an open-addressing hash table in a memory-mapped file, off the heap:
+// the GC never has to trace them, and a restart maps the file again instead of
+// deserializing it.
+//
+// Every slot is a fixed 48-byte record: the txid's four words, the output index,
+// the address reference plus one (0 marks an empty slot) and the amount. Slots
+// are found by linear probing, and a removal shifts the records after it back
+// so no tombstones build up. Once two thirds full the table is rehashed into a
+// file twice the size, which then replaces the old one.
+//
+// AddressTable ids only last as long as the process, so the store numbers the
+// addresses it holds itself, in a companion file of UTF strings.
+//
+// get() reads optimistically without a lock and only retries under a read lock
+// if a write got in the way. forEach() holds the read lock throughout, since a
+// removal may move a record back past the scan.
+//
+// The header also holds the hash of the block the contents are the state after,
+// as of the last flush. The first change after a flush takes it back (durably,
+// before any record is touched), so after a crash the store reads as unknown
+// rather than as matching a chain it no longer does.
+public class MappedUTXOStore implements UTXOStore, Closeable {
+    private static final int MAGIC = 0x5554584f; // "UTXO"
+    private static final int FORMAT = 1;
+    private static final int HEADER_SIZE = 64; // magic, format, capacity, size, tip
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int SIZE_OFFSET = 16;
+    private static final int TIP_STATE_OFFSET = 24; // 1 while TIP_OFFSET holds the tip flushed at
+    private static final int TIP_OFFSET = 32;
+    private static final int RECORD_SIZE = 48;
+    private static final int INDEX_OFFSET = 32;
+    private static final int ADDRESS_OFFSET = 36;
+    private static final int VALUE_OFFSET = 40;
+    private static final int SEGMENT_BITS = 24; // 2^24 records, 768 MiB, per mapping
+    private static final long MIN_CAPACITY = 1 << 10;
+
+    private final File file;
+    private final RandomAccessFile addressFile;
+    private final StampedLock lock = new StampedLock();
+    private volatile Table table;
+    private volatile int size;
+    // store address reference -> AddressTable entry, and id back to reference; only
+    // the writer adds to them. Holding the entries keeps their ids while the store is open.
+    private volatile AddressTable.Entry[] addresses = new AddressTable.Entry[16];
+    private int addressCount;
+    private final Map<Integer, Integer> addressRefs = new HashMap<>();
+    private volatile Hash256 tipHash; // null once changed since the tip was set
+    private boolean tipDurable; // the header holds tipHash; only the writer uses it
+
+    private static final class Table {
+        final FileChannel channel;
+        final MappedByteBuffer header;
+        final MappedByteBuffer[] segments;
+        final long capacity;
+        final long mask;
+
+        Table(FileChannel channel, MappedByteBuffer header, long capacity) throws IOException {
+            this.channel = channel;
+            this.header = header;
+            this.capacity = capacity;
+            this.mask = capacity - 1;
+            long segmentRecords = 1L << SEGMENT_BITS;
+            this.segments = new MappedByteBuffer[(int) ((capacity + segmentRecords - 1) >>> SEGMENT_BITS)];
+            for (int i = 0; i < segments.length; i++) {
+                long records = Math.min(segmentRecords, capacity - i * segmentRecords);
+                segments[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                        HEADER_SIZE + i * segmentRecords * RECORD_SIZE, records * RECORD_SIZE);
+            }
+        }
+
+        static Table create(File file, long capacity) throws IOException {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            header.putInt(0, MAGIC);
+            header.putInt(4, FORMAT);
+            header.putLong(CAPACITY_OFFSET, capacity);
+            header.putLong(SIZE_OFFSET, 0);
+            return new Table(channel, header, capacity);
+        }
+
+        static Table open(File file) throws IOException {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != FORMAT) {
+                channel.close();
+                throw new IOException(file + " is not a UTXO store");
+            }
+            return new Table(channel, header, header.getLong(CAPACITY_OFFSET));
+        }
+
+        MappedByteBuffer segment(long slot) {
+            return segments[(int) (slot >>> SEGMENT_BITS)];
+        }
+
+        int offset(long slot) {
+            return (int) (slot & ((1L << SEGMENT_BITS) - 1)) * RECORD_SIZE;
+        }
+
+        boolean isEmpty(long slot) {
+            return segment(slot).getInt(offset(slot) + ADDRESS_OFFSET) == 0;
+        }
+
+        long homeOf(long slot) {
+            MappedByteBuffer segment = segment(slot);
+            int offset = offset(slot);
+            return home(segment.getLong(offset), segment.getInt(offset + INDEX_OFFSET), mask);
+        }
+
+        void copy(long fromSlot, Table to, long toSlot) {
+            MappedByteBuffer from = segment(fromSlot);
+            MappedByteBuffer dst = to.segment(toSlot);
+            int fromOffset = offset(fromSlot);
+            int toOffset = to.offset(toSlot);
+            for (int i = 0; i < RECORD_SIZE; i += 8) {
+                dst.putLong(toOffset + i, from.getLong(fromOffset + i));
+            }
+        }
+
+        void clear(long slot) {
+            MappedByteBuffer segment = segment(slot);
+            int offset = offset(slot);
+            for (int i = 0; i < RECORD_SIZE; i += 8) {
+                segment.putLong(offset + i, 0);
+            }
+        }
+
+        void force() {
+            header.force();
+            for (MappedByteBuffer segment : segments) {
+                segment.force();
+            }
+        }
+    }
+
+    // Opens the store in file, or creates an empty one if there is none. A store
+    // whose records refer to addresses missing from the companion file, as a
+    // crash between writing the two can leave it, is emptied, with no tip, so
+    // the node rebuilds it.
+    public MappedUTXOStore(File file) throws IOException {
+        this.file = file;
+        if (file.exists() && file.length() > 0) {
+            table = Table.open(file);
+        } else {
+            Files.deleteIfExists(file.toPath());
+            table = Table.create(file, MIN_CAPACITY);
+        }
+        addressFile = new RandomAccessFile(file.getPath() + ".addresses", "rw");
+        long complete = 0;
+        try {
+            while (addressFile.getFilePointer() < addressFile.length()) {
+                register(AddressTable.intern(addressFile.readUTF()));
+                complete = addressFile.getFilePointer();
+            }
+        } catch (EOFException e) {
+            addressFile.setLength(complete); // the last address was cut short
+        }
+        if (!hasAllAddresses(table)) {
+            System.out.println(file + " refers to addresses it does not hold; emptying it.");
+            table.channel.close();
+            Files.delete(file.toPath());
+            table = Table.create(file, MIN_CAPACITY);
+        }
+        size = (int) table.header.getLong(SIZE_OFFSET);
+        if (table.header.getLong(TIP_STATE_OFFSET) == 1) {
+            MappedByteBuffer header = table.header;
+            tipHash = Hash256.fromWords(header.getLong(TIP_OFFSET), header.getLong(TIP_OFFSET + 8),
+                    header.getLong(TIP_OFFSET + 16), header.getLong(TIP_OFFSET + 24));
+            tipDurable = true;
+        }
+    }
+
+    // whether every record's address reference is one the address file holds
+    private boolean hasAllAddresses(Table t) {
+        for (long slot = 0; slot < t.capacity; slot++) {
+            int ref = t.segment(slot).getInt(t.offset(slot) + ADDRESS_OFFSET);
+            if (ref < 0 || ref > addressCount) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public UTXO get(UTXOKey utxoKey) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                UTXO utxo = read(table, utxoKey);
+                if (lock.validate(stamp)) {
+                    return utxo;
+                }
+            } catch (RuntimeException e) {
+                // read a record while it was being written; retried below
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return read(table, utxoKey);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public synchronized void put(UTXOKey utxoKey, UTXO utxo) {
+        forgetTip();
+        int addressRef = addressRef(utxo.getAddressEntry());
+        if (find(table, utxoKey) < 0 && size + 1 > table.capacity / 3 * 2) {
+            grow();
+        }
+        long stamp = lock.writeLock();
+        try {
+            Table t = table;
+            long slot = find(t, utxoKey);
+            MappedByteBuffer segment;
+            int offset;
+            if (slot < 0) {
+                Hash256 txHash = utxoKey.getTxHash();
+                slot = home(txHash.word(0), utxoKey.getIndex(), t.mask);
+                while (!t.isEmpty(slot)) {
+                    slot = (slot + 1) & t.mask;
+                }
+                segment = t.segment(slot);
+                offset = t.offset(slot);
+                for (int i = 0; i < 4; i++) {
+                    segment.putLong(offset + i * 8, txHash.word(i));
+                }
+                segment.putInt(offset + INDEX_OFFSET, utxoKey.getIndex());
+                size++;
+                t.header.putLong(SIZE_OFFSET, size);
+            } else {
+                segment = t.segment(slot);
+                offset = t.offset(slot);
+            }
+            segment.putInt(offset + ADDRESS_OFFSET, addressRef + 1);
+            segment.putLong(offset + VALUE_OFFSET, utxo.getValue());
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public synchronized void remove(UTXOKey utxoKey) {
+        forgetTip();
+        long stamp = lock.writeLock();
+        try {
+            Table t = table;
+            long hole = find(t, utxoKey);
+            if (hole < 0) {
+                return;
+            }
+            // move back every record after the hole that would no longer be
+            // reachable from its home slot
+            for (long slot = (hole + 1) & t.mask; !t.isEmpty(slot); slot = (slot + 1) & t.mask) {
+                long home = t.homeOf(slot);
+                boolean reachable = hole <= slot ? hole < home && home <= slot : hole < home || home <= slot;
+                if (!reachable) {
+                    t.copy(slot, t, hole);
+                    hole = slot;
+                }
+            }
+            t.clear(hole);
+            size--;
+            t.header.putLong(SIZE_OFFSET, size);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void forEach(BiConsumer<UTXOKey, UTXO> action) {
+        long stamp = lock.readLock();
+        try {
+            Table t = table;
+            AddressTable.Entry[] entries = addresses;
+            for (long slot = 0; slot < t.capacity; slot++) {
+                if (t.isEmpty(slot)) {
+                    continue;
+                }
+                MappedByteBuffer segment = t.segment(slot);
+                int offset = t.offset(slot);
+                Hash256 txHash = Hash256.fromWords(segment.getLong(offset), segment.getLong(offset + 8),
+                        segment.getLong(offset + 16), segment.getLong(offset + 24));
+                UTXOKey utxoKey = new UTXOKey(txHash, segment.getInt(offset + INDEX_OFFSET));
+                AddressTable.Entry address = entries[segment.getInt(offset + ADDRESS_OFFSET) - 1];
+                action.accept(utxoKey, new UTXO(segment.getLong(offset + VALUE_OFFSET), address));
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // The block whose state the store holds: as of the last flush when just
+    // opened, else as last set. null if unknown or changed since.
+    public Hash256 getTipHash() {
+        return this.tipHash;
+    }
+
+    // Called after a batch of changes, with the block they brought the store to;
+    // written to the header by the next flush
+    public synchronized void setTipHash(Hash256 tipHash) {
+        if (!Objects.equals(this.tipHash, tipHash)) {
+            forgetTip();
+            this.tipHash = tipHash;
+        }
+    }
+
+    private void forgetTip() {
+        tipHash = null;
+        if (tipDurable) {
+            table.header.putLong(TIP_STATE_OFFSET, 0);
+            table.header.force();
+            tipDurable = false;
+        }
+    }
+
+    // Writes the records out, then the tip, so the tip never gets to disk ahead
+    // of the state it names
+    @Override
+    public synchronized void flush() {
+        try {
+            addressFile.getChannel().force(false);
+            table.force();
+            Hash256 tip = tipHash;
+            if (tip != null && !tipDurable) {
+                MappedByteBuffer header = table.header;
+                for (int i = 0; i < 4; i++) {
+                    header.putLong(TIP_OFFSET + i * 8, tip.word(i));
+                }
+                header.putLong(TIP_STATE_OFFSET, 1);
+                header.force();
+                tipDurable = true;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        table.channel.close();
+        addressFile.close();
+    }
+
+    private static long home(long word0, int index, long mask) {
+        // word0 is already hash output; mix in the index so a transaction's outputs spread
+        long h = word0 ^ (index * 0x9e3779b97f4a7c15L);
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h & mask;
+    }
+
+    private static long find(Table t, UTXOKey utxoKey) {
+        Hash256 txHash = utxoKey.getTxHash();
+        long word0 = txHash.word(0);
+        int index = utxoKey.getIndex();
+        long slot = home(word0, index, t.mask);
+        for (long probe = 0; probe < t.capacity; probe++) {
+            MappedByteBuffer segment = t.segment(slot);
+            int offset = t.offset(slot);
+            if (segment.getInt(offset + ADDRESS_OFFSET) == 0) {
+                return -1;
+            }
+            if (segment.getInt(offset + INDEX_OFFSET) == index && segment.getLong(offset) == word0
+                    && segment.getLong(offset + 8) == txHash.word(1)
+                    && segment.getLong(offset + 16) == txHash.word(2)
+                    && segment.getLong(offset + 24) == txHash.word(3)) {
+                return slot;
+            }
+            slot = (slot + 1) & t.mask;
+        }
+        return -1;
+    }
+
+    private UTXO read(Table t, UTXOKey utxoKey) {
+        long slot = find(t, utxoKey);
+        if (slot < 0) {
+            return null;
+        }
+        MappedByteBuffer segment = t.segment(slot);
+        int offset = t.offset(slot);
+        AddressTable.Entry address = addresses[segment.getInt(offset + ADDRESS_OFFSET) - 1];
+        return new UTXO(segment.getLong(offset + VALUE_OFFSET), address);
+    }
+
+    // Rehashes into a table twice the size. Readers keep using the old table
+    // until the new one is swapped in.
+    private void grow() {
+        Table old = table;
+        File resized = new File(file.getPath() + ".resize");
+        try {
+            Files.deleteIfExists(resized.toPath());
+            Table t = Table.create(resized, old.capacity * 2);
+            for (long slot = 0; slot < old.capacity; slot++) {
+                if (old.isEmpty(slot)) {
+                    continue;
+                }
+                MappedByteBuffer segment = old.segment(slot);
+                int offset = old.offset(slot);
+                long to = home(segment.getLong(offset), segment.getInt(offset + INDEX_OFFSET), t.mask);
+                while (!t.isEmpty(to)) {
+                    to = (to + 1) & t.mask;
+                }
+                old.copy(slot, t, to);
+            }
+            t.header.putLong(SIZE_OFFSET, size);
+            t.force();
+            long stamp = lock.writeLock();
+            try {
+                Files.move(resized.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                table = t;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+            old.channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private int addressRef(AddressTable.Entry address) {
+        Integer ref = addressRefs.get(address.getId());
+        if (ref != null) {
+            return ref;
+        }
+        try {
+            addressFile.seek(addressFile.length());
+            addressFile.writeUTF(address.getAddress());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return register(address);
+    }
+
+    private int register(AddressTable.Entry address) {
+        int ref = addressCount++;
+        AddressTable.Entry[] entries = addresses;
+        if (ref == entries.length) {
+            entries = Arrays.copyOf(entries, entries.length * 2);
+        }
+        entries[ref] = address;
+        addresses = entries;
+        addressRefs.put(address.getId(), ref);
+        return ref;
+    }
+}
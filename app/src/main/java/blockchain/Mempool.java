@@ -6,7 +6,7 @@ public class Mempool {
     private PriorityQueue<Transaction> storedTransactions;
 
     public Mempool() {
-        this.storedTransactions = new PriorityQueue<>((t1, t2) -> Double.compare(t2.getFee(), t1.getFee()));
+        this.storedTransactions = new PriorityQueue<>((t1, t2) -> Long.compare(t2.getFee(), t1.getFee()));
     }
 
     public void addTransactionToMempool(Transaction transaction) {
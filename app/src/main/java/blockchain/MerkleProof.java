@@ -0,0 +1,63 @@
+package blockchain;
+
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+// Proof that a transaction id is a leaf of a block's merkle tree: one sibling
+// hash per level, bottom up, and a bitmap whose bit i is set when the path node
+// at level i is a right child. Checking it takes log2(transactions) hashes and
+// needs only the block's merkle root, not its transactions.
+public class MerkleProof implements Serializable {
+    private static final long serialVersionUID = 2317709595944805708L;
+
+    private final int leafIndex;
+    private final byte[] siblings; // MerkleTree.HASH_SIZE bytes per level
+    private final long path;
+
+    public MerkleProof(int leafIndex, byte[] siblings, long path) {
+        this.leafIndex = leafIndex;
+        this.siblings = siblings;
+        this.path = path;
+    }
+
+    public int getLeafIndex() {
+        return this.leafIndex;
+    }
+
+    public int getDepth() {
+        return siblings.length / MerkleTree.HASH_SIZE;
+    }
+
+    public byte[] getSiblings() {
+        return this.siblings.clone();
+    }
+
+    public long getPath() {
+        return this.path;
+    }
+
+    public boolean verify(String transactionId, String merkleRoot) {
+        return verify(MerkleTree.fromHex(transactionId), MerkleTree.fromHex(merkleRoot));
+    }
+
+    public boolean verify(Hash256 transactionId, String merkleRoot) {
+        return verify(transactionId.toBytes(), MerkleTree.fromHex(merkleRoot));
+    }
+
+    public boolean verify(byte[] leaf, byte[] root) {
+        if (leaf.length != MerkleTree.HASH_SIZE || siblings.length % MerkleTree.HASH_SIZE != 0) {
+            return false;
+        }
+        MessageDigest digest = MerkleTree.digest();
+        byte[] node = leaf.clone();
+        for (int level = 0; level < getDepth(); level++) {
+            if ((path >>> level & 1) == 0) {
+                MerkleTree.hashPair(digest, node, 0, siblings, level, node, 0);
+            } else {
+                MerkleTree.hashPair(digest, siblings, level, node, 0, node, 0);
+            }
+        }
+        return Arrays.equals(node, root);
+    }
+}
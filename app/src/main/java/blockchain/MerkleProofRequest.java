@@ -0,0 +1,43 @@
+package blockchain;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+// Asks a peer to prove that a transaction is in a block. Equal requests are
+// one pending request on the asking node.
+public class MerkleProofRequest implements Serializable {
+    private static final long serialVersionUID = 2317709595944805708L;
+
+    private final Hash256 blockHash;
+    private final Hash256 transactionId;
+
+    public MerkleProofRequest(Hash256 blockHash, Hash256 transactionId) {
+        this.blockHash = blockHash;
+        this.transactionId = transactionId;
+    }
+
+    public Hash256 getBlockHash() {
+        return this.blockHash;
+    }
+
+    public Hash256 getTransactionId() {
+        return this.transactionId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof MerkleProofRequest)) {
+            return false;
+        }
+        MerkleProofRequest other = (MerkleProofRequest) o;
+        return blockHash.equals(other.blockHash) && transactionId.equals(other.transactionId);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(blockHash, transactionId);
+    }
+}
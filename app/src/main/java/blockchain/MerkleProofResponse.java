@@ -0,0 +1,32 @@
+package blockchain;
+
+import java.io.Serializable;
+
+// Answer to a MerkleProofRequest. proof is null when the peer does not know the
+// block or the transaction is not in it; otherwise it is checked against the
+// merkle root in the block's header, which the requester already holds.
+public class MerkleProofResponse implements Serializable {
+    private static final long serialVersionUID = 2317709595944805708L;
+
+    private final Hash256 blockHash;
+    private final Hash256 transactionId;
+    private final MerkleProof proof;
+
+    public MerkleProofResponse(Hash256 blockHash, Hash256 transactionId, MerkleProof proof) {
+        this.blockHash = blockHash;
+        this.transactionId = transactionId;
+        this.proof = proof;
+    }
+
+    public Hash256 getBlockHash() {
+        return this.blockHash;
+    }
+
+    public Hash256 getTransactionId() {
+        return this.transactionId;
+    }
+
+    public MerkleProof getProof() {
+        return this.proof;
+    }
+}
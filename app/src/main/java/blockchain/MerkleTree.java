@@ -0,0 +1,128 @@
+package blockchain;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Merkle tree over raw 32-byte hashes. The leaves are the transactions' cached
+// ids, a parent is SHA-256(left || right) of the raw bytes, and a level with an
+// odd number of nodes pairs its last node with itself. A single transaction is
+// its own root. Every level is one contiguous array and all hashing on a thread
+// goes through the same MessageDigest, so building a tree allocates one array
+// per level and nothing per node.
+public class MerkleTree {
+    public static final int HASH_SIZE = 32;
+
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 algorithm not available", e);
+        }
+    });
+
+    private final byte[][] levels; // levels[0] holds the leaves, the last level the root
+
+    public MerkleTree(List<Transaction> transactions) {
+        this(leavesOf(transactions));
+    }
+
+    // leaves: the leaf hashes back to back, HASH_SIZE bytes each
+    public MerkleTree(byte[] leaves) {
+        List<byte[]> built = new ArrayList<>();
+        byte[] level = leaves;
+        built.add(level);
+        MessageDigest digest = DIGEST.get();
+        while (level.length > HASH_SIZE) {
+            int count = level.length / HASH_SIZE;
+            byte[] parents = new byte[(count + 1) / 2 * HASH_SIZE];
+            for (int i = 0; i < count; i += 2) {
+                int right = i + 1 < count ? i + 1 : i;
+                hashPair(digest, level, i, level, right, parents, i / 2);
+            }
+            built.add(parents);
+            level = parents;
+        }
+        this.levels = built.toArray(new byte[0][]);
+    }
+
+    public static byte[] leavesOf(List<Transaction> transactions) {
+        byte[] leaves = new byte[transactions.size() * HASH_SIZE];
+        for (int i = 0; i < transactions.size(); i++) {
+            transactions.get(i).getHash().writeTo(leaves, i * HASH_SIZE);
+        }
+        return leaves;
+    }
+
+    public int getLeafCount() {
+        return levels[0].length / HASH_SIZE;
+    }
+
+    // Inclusion proof for the leaf at index. A node without a right sibling is
+    // paired with itself, so its own hash stands in as the sibling.
+    public MerkleProof proof(int index) {
+        if (index < 0 || index >= getLeafCount()) {
+            throw new IndexOutOfBoundsException("No leaf " + index + " in a tree of " + getLeafCount());
+        }
+        int depth = levels.length - 1;
+        byte[] siblings = new byte[depth * HASH_SIZE];
+        long path = 0;
+        int node = index;
+        for (int level = 0; level < depth; level++) {
+            int count = levels[level].length / HASH_SIZE;
+            int sibling = (node & 1) == 0 ? Math.min(node + 1, count - 1) : node - 1;
+            System.arraycopy(levels[level], sibling * HASH_SIZE, siblings, level * HASH_SIZE, HASH_SIZE);
+            if ((node & 1) == 1) {
+                path |= 1L << level;
+            }
+            node >>>= 1;
+        }
+        return new MerkleProof(index, siblings, path);
+    }
+
+    // an empty tree has an all-zero root
+    public byte[] getRoot() {
+        byte[] top = levels[levels.length - 1];
+        return top.length == 0 ? new byte[HASH_SIZE] : top.clone();
+    }
+
+    public String getRootHex() {
+        return toHex(getRoot(), 0);
+    }
+
+    // Writes SHA-256(left node || right node) into node dstIndex of dst.
+    static void hashPair(MessageDigest digest, byte[] leftLevel, int leftIndex, byte[] rightLevel, int rightIndex,
+            byte[] dst, int dstIndex) {
+        digest.update(leftLevel, leftIndex * HASH_SIZE, HASH_SIZE);
+        digest.update(rightLevel, rightIndex * HASH_SIZE, HASH_SIZE);
+        try {
+            digest.digest(dst, dstIndex * HASH_SIZE, HASH_SIZE);
+        } catch (DigestException e) {
+            throw new IllegalStateException("Merkle node buffer too small", e);
+        }
+    }
+
+    static MessageDigest digest() {
+        return DIGEST.get();
+    }
+
+    static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) ((Character.digit(hex.charAt(i * 2), 16) << 4)
+                    | Character.digit(hex.charAt(i * 2 + 1), 16));
+        }
+        return bytes;
+    }
+
+    static String toHex(byte[] bytes, int offset) {
+        StringBuilder hexString = new StringBuilder(HASH_SIZE * 2);
+        for (int i = offset; i < offset + HASH_SIZE; i++) {
+            hexString.append(Character.forDigit((bytes[i] >> 4) & 0xf, 16));
+            hexString.append(Character.forDigit(bytes[i] & 0xf, 16));
+        }
+        return hexString.toString();
+    }
+}
@@ -0,0 +1,30 @@
+package blockchain;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Merkle trees of recently queried blocks, keyed by block hash, so answering
+// several proof requests for the same block builds its tree once. The least
+// recently used tree is dropped once more than capacity are held.
+public class MerkleTreeCache {
+    private final Map<Hash256, MerkleTree> trees;
+
+    public MerkleTreeCache(int capacity) {
+        this.trees = new LinkedHashMap<Hash256, MerkleTree>(16, 0.75f, true) {
+            private static final long serialVersionUID = 2317709595944805708L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Hash256, MerkleTree> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    public synchronized MerkleTree get(Block block) {
+        return trees.computeIfAbsent(block.getBlockHash(), hash -> new MerkleTree(block.getBlockTransactions()));
+    }
+
+    public synchronized int size() {
+        return trees.size();
+    }
+}
@@ -1,24 +1,34 @@
 package blockchain;
 
-import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 public class Mining {
+    // how many hashes the nonce search does between checks of its MiningJob
+    public static final int CANCEL_CHECK_INTERVAL = 1 << 12;
+
     private int nonce = 0;
+    private long extraNonce = 0;
     private String previousHash;
     private String merkleRoot;
     private long timestamp;
     private String blockHash;
     private String minerAddress;
-    private double minerReward;
+    private long minerReward; // in base units
     private UTXOPool utxoPool;
     private Block block; // what we will produce
     private int numOfTransactions = 2;
-    private int difficulty = 6;
-
-    public Mining(String previousHash, String minerAddress, UTXOPool utxoPool, double minerReward) {
+    private int difficultyBits = Difficulty.INITIAL_BITS;
+    private ParallelMiner parallelMiner; // when null the nonce search runs on the calling thread
+    private MiningJob job; // when null the search cannot be cancelled
+    private HashingEngine hashingEngine = HashingEngine.SCALAR;
+    private MiningStats miningStats = new MiningStats();
+    private CpuBudget cpuBudget; // when null hashing is never throttled
+    private Consumer<BlockTemplate> templateListener; // told about every template mineBlock starts on
+
+    public Mining(String previousHash, String minerAddress, UTXOPool utxoPool, long minerReward) {
         this.previousHash = previousHash;
         this.timestamp = System.currentTimeMillis();
         this.minerAddress = minerAddress;
@@ -39,6 +49,62 @@ public class Mining {
         this.minerAddress = minerAddress;
     }
 
+    public void setParallelMiner(ParallelMiner parallelMiner) {
+        this.parallelMiner = parallelMiner;
+    }
+
+    public void setHashingEngine(HashingEngine hashingEngine) {
+        this.hashingEngine = hashingEngine;
+    }
+
+    public HashingEngine getHashingEngine() {
+        return this.hashingEngine;
+    }
+
+    public void setMiningStats(MiningStats miningStats) {
+        this.miningStats = miningStats;
+    }
+
+    public MiningStats getMiningStats() {
+        return this.miningStats;
+    }
+
+    public void setCpuBudget(CpuBudget cpuBudget) {
+        this.cpuBudget = cpuBudget;
+    }
+
+    // Every search loop calls this after each chunk it hashes.
+    void afterChunk(int worker, long hashes, long nanos) {
+        miningStats.recordHashes(worker, hashes, nanos);
+        if (cpuBudget != null) {
+            cpuBudget.afterHashing(nanos);
+        }
+    }
+
+    public void setTemplateListener(Consumer<BlockTemplate> templateListener) {
+        this.templateListener = templateListener;
+    }
+
+    public void setJob(MiningJob job) {
+        this.job = job;
+    }
+
+    public MiningJob getJob() {
+        return this.job;
+    }
+
+    private boolean isCancelled() {
+        return job != null && job.isCancelled();
+    }
+
+    public int getNonce() {
+        return this.nonce;
+    }
+
+    public long getExtraNonce() {
+        return this.extraNonce;
+    }
+
     public ArrayList<Transaction> getBlockTransactionsToBeHashed(Mempool mempool) {
         // retrieves a set number of transactions from the Mempool to be made into a
         // block
@@ -54,142 +120,209 @@ public class Mining {
     }
 
     public String merkleRootHash(ArrayList<Transaction> transactions) {
-        // Edge case: if there is only one transaction, return its hash.
-        // Merkle Root = Transaction hash.
-        if (transactions.size() == 1) {
-            try {
-                MessageDigest md = MessageDigest.getInstance("SHA-256");
-                final byte[] rewardHash = md.digest(transactions.get(0).getTransactionString().getBytes());
-                String hexString = byteToString(rewardHash);
-                return hexString;
-            } catch (NoSuchAlgorithmException e) {
-                throw new RuntimeException("SHA-256 algorithm not available", e);
-            }
-        }
-
-        ArrayList<String> merkleTree = new ArrayList<>();
+        // built from the transactions' cached ids; see MerkleTree
+        merkleRoot = new MerkleTree(transactions).getRootHex();
+        return merkleRoot;
+    }
 
-        // You now want to hash every transaction.
-        for (int i = 0; i < transactions.size(); i += 1) {
-            try {
-                MessageDigest md = MessageDigest.getInstance("SHA-256");
-                final byte[] transactionHash = md.digest(transactions.get(i).getTransactionString().getBytes());
-                merkleTree.add(byteToString(transactionHash));
-            } catch (NoSuchAlgorithmException e) {
-                throw new RuntimeException("SHA-256 algorithm not available", e);
+    // Returns the winning block hash, or null if the mining job was cancelled first.
+    public String calculateBlockHash(String previousHash, long timestamp, String merkleRoot) {
+        if (parallelMiner != null) {
+            ParallelMiner.Solution solution = parallelMiner.search(this, previousHash, timestamp, merkleRoot, nonce);
+            if (solution == null) {
+                if (isCancelled()) {
+                    return null;
+                }
+                throw new IllegalStateException("Nonce space exhausted without finding a valid block hash");
             }
+            nonce = solution.getNonce();
+            blockHash = solution.getBlockHash();
+            return blockHash;
         }
 
-        // You have [HashA, HashB, HashC]
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            while (merkleTree.size() > 1) {
-                ArrayList<String> nextLevel = new ArrayList<>();
-
-                for (int i = 0; i < merkleTree.size(); i += 2) {
-                    String currentHash = merkleTree.get(i);
-                    String nextHash = (i + 1 < merkleTree.size()) ? merkleTree.get(i + 1) : currentHash; // Duplicate
-                                                                                                         // last
-                                                                                                         // hash if odd
-                                                                                                         // number of
-                                                                                                         // elements
-
-                    // Concatenate and hash the current and next hash (or duplicated last hash)
-                    String combinedHash = currentHash + nextHash;
-                    byte[] hashBytes = md.digest(combinedHash.getBytes(StandardCharsets.UTF_8));
-                    String hashHex = byteToString(hashBytes);
-
-                    nextLevel.add(hashHex);
-                }
-                merkleTree = nextLevel; // Prepare for the next iteration with the newly formed level
+        byte[] headerPrefix = Block.headerPrefix(previousHash, timestamp, merkleRoot, difficultyBits);
+        NonceScanner scanner = hashingEngine.newScanner(headerPrefix, Difficulty.toTargetWords(difficultyBits));
+        for (long from = nonce; from <= Integer.MAX_VALUE; from += CANCEL_CHECK_INTERVAL) {
+            long to = Math.min(from + CANCEL_CHECK_INTERVAL, (long) Integer.MAX_VALUE + 1);
+            long chunkStarted = System.nanoTime();
+            long found = scanner.scan(from, to);
+            afterChunk(0, (found >= 0 ? found + 1 : to) - from, System.nanoTime() - chunkStarted);
+            if (found >= 0) {
+                nonce = (int) found;
+                // only the winning digest is ever hex encoded
+                HeaderHasher hasher = new HeaderHasher(headerPrefix);
+                hasher.hash(nonce);
+                blockHash = hasher.hexDigest();
+                return blockHash;
+            }
+            nonce = (int) Math.min(to, Integer.MAX_VALUE);
+            if (isCancelled()) {
+                return null;
             }
-
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException("SHA-256 algorithm not available", e);
         }
-
-        merkleRoot = merkleTree.get(0);
-        return merkleRoot;
+        throw new IllegalStateException("Nonce space exhausted without finding a valid block hash");
     }
 
-    public String calculateBlockHash(String previousHash, long timestamp, String merkleRoot) {
-
-        String combinedString = previousHash + String.valueOf(timestamp) + merkleRoot + String.valueOf(nonce);
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            // Hash the combined string
-            byte[] hashBytes = md.digest(combinedString.getBytes());
-            blockHash = byteToString(hashBytes);
-
-            while (!blockHash.substring(0, difficulty).equals("0".repeat(difficulty))) {
-                nonce += 1;
-                combinedString = previousHash + String.valueOf(timestamp) + merkleRoot + String.valueOf(nonce);
-                hashBytes = md.digest(combinedString.getBytes());
-                blockHash = byteToString(hashBytes);
+    // Searches the headers of a template: the whole nonce space of
+    // (timestamp, firstExtraNonce), then of the next extra-nonce, extraNonceStep
+    // further on, with the timestamp rolled forward to the current time, and so
+    // on, so no header is ever hashed twice. Several workers can share one
+    // template as long as their extra-nonce sequences do not overlap; the first
+    // solution any of them finds is put into winner and stops the others.
+    // Returns null when the job is cancelled or another worker won.
+    ParallelMiner.Solution searchTemplate(HeaderTemplate template, int worker, long firstTimestamp,
+            long firstExtraNonce, long extraNonceStep, AtomicReference<ParallelMiner.Solution> winner) {
+        int[] targetWords = Difficulty.toTargetWords(difficultyBits);
+        long timestamp = firstTimestamp;
+        for (long extraNonce = firstExtraNonce;; extraNonce += extraNonceStep) {
+            byte[] headerPrefix = template.headerPrefix(timestamp, extraNonce);
+            NonceScanner scanner = hashingEngine.newScanner(headerPrefix, targetWords);
+            for (long from = 0; from <= Integer.MAX_VALUE; from += CANCEL_CHECK_INTERVAL) {
+                if (isCancelled() || winner.get() != null) {
+                    return null;
+                }
+                long to = Math.min(from + CANCEL_CHECK_INTERVAL, (long) Integer.MAX_VALUE + 1);
+                long chunkStarted = System.nanoTime();
+                long found = scanner.scan(from, to);
+                afterChunk(worker, (found >= 0 ? found + 1 : to) - from, System.nanoTime() - chunkStarted);
+                if (found >= 0) {
+                    HeaderHasher hasher = new HeaderHasher(headerPrefix);
+                    hasher.hash((int) found);
+                    ParallelMiner.Solution solution = new ParallelMiner.Solution((int) found, hasher.hexDigest(),
+                            timestamp, extraNonce);
+                    return winner.compareAndSet(null, solution) ? solution : null;
+                }
             }
-
-            return blockHash;
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException("SHA-256 algorithm not available", e);
+            // nonce space exhausted
+            timestamp = Math.max(timestamp, System.currentTimeMillis());
         }
-
     }
 
     public UTXOPool getUTXOPool() {
         return this.utxoPool;
     }
 
-    // add mined block to the blockchain
+    // Mines a block on top of previousHash and connects it to node's chain.
+    // Returns null if the mining job is cancelled before a solution is found, or
+    // if another block was connected first; the chain, UTXO pool and mempool are
+    // only updated once the block has actually been mined.
     public Block mineBlock(ArrayList<Transaction> transactionsToMine, Node node) {
-        // Create a temporary copy of the UTXOPool to verify transactions against
-        UTXOPool tempUTXOPool = node.getUTXOPool();
+        // the block's spends and outputs are collected in a view of the pool, which
+        // is committed once the block is mined and simply dropped otherwise
+        try (UTXOView blockView = new UTXOView(node.getUTXOPool())) {
+            return mineBlock(transactionsToMine, node, blockView);
+        }
+    }
+
+    private Block mineBlock(ArrayList<Transaction> transactionsToMine, Node node, UTXOView blockView) {
+        long templateStarted = System.nanoTime();
 
         ArrayList<Transaction> validTransactions = new ArrayList<>();
         for (Transaction transaction : transactionsToMine) {
+            // a transaction's spends only reach the block once all of its inputs are unspent
+            UTXOView transactionView = new UTXOView(blockView);
+            // the fee the miner collects is what the inputs hold beyond the outputs,
+            // never a figure that came with the transaction
+            long fee = transactionView.feeOf(transaction);
+            if (fee < 0) {
+                continue;
+            }
+            transaction.setFee(fee);
             boolean isValid = true;
             for (Input input : transaction.getInputs()) {
                 UTXOKey utxoKey = new UTXOKey(input.getTxId(), input.getOutputIndex());
-                if (!tempUTXOPool.containsUTXOKey(utxoKey)) {
+                if (!transactionView.spend(utxoKey)) {
                     isValid = false;
-                    break; // This input does not have a corresponding UTXO, thus invalid
+                    break; // This input does not have a corresponding unspent UTXO, thus invalid
                 }
             }
             if (isValid) {
                 validTransactions.add(transaction);
-                // Mark UTXOs as spent for subsequent transactions
-                for (Input input : transaction.getInputs()) {
-                    UTXOKey utxoKey = new UTXOKey(input.getTxId(), input.getOutputIndex());
-                    tempUTXOPool.removeFromUTXOPool(utxoKey);
-                }
+                transactionView.commit();
             }
         }
 
         // Now, validTransactions contains only the transactions that are valid
         // considering the current UTXO set.
 
-        // Add the miner reward transaction
-        Transaction minerRewardTransaction = createMinerRewardTransaction(node, validTransactions,
-                node.getBlockchain().getBlockHeight());
-        validTransactions.add(minerRewardTransaction); // Add miner reward at the end
+        // The miner reward transaction carries the extra-nonce and is the last leaf
+        // of the merkle tree, so moving to a new extra-nonce only rehashes that
+        // leaf's path to the root
+        int blockHeight = node.getBlockchain().getBlockHeight();
+        // headers have to be stamped later than the median of the blocks below them,
+        // whatever the local clock says
+        List<Block> below = node.getBlockchain().getChain();
+        if (!below.isEmpty()) {
+            timestamp = Math.max(timestamp, Difficulty.medianTimePast(below) + 1);
+        }
+        IncrementalMerkleTree merkleTree = new IncrementalMerkleTree(validTransactions);
+        int rewardLeaf = merkleTree.append(
+                createMinerRewardTransaction(node, validTransactions, blockHeight, 0).getHashBytes());
+        HeaderTemplate headers = (templateTimestamp, templateExtraNonce) -> {
+            byte[] rewardId = createMinerRewardTransaction(node, validTransactions, blockHeight, templateExtraNonce)
+                    .getHashBytes();
+            String root;
+            synchronized (merkleTree) { // workers move to new extra-nonces concurrently
+                merkleTree.replace(rewardLeaf, rewardId);
+                root = merkleTree.getRootHex();
+            }
+            return Block.headerPrefix(previousHash, templateTimestamp, root, difficultyBits);
+        };
+        BlockTemplate template = new BlockTemplate(previousHash, difficultyBits, timestamp, headers, job);
+        if (templateListener != null) {
+            templateListener.accept(template);
+        }
 
+        long searchStarted = System.nanoTime();
+        miningStats.recordTemplate(searchStarted - templateStarted);
+        // local workers use extra-nonces from 0 upwards; remote miners are given
+        // negative ones, so the two never hash the same header
+        if (parallelMiner != null) {
+            parallelMiner.searchTemplate(this, headers, timestamp, template.getWinner());
+        } else {
+            searchTemplate(headers, 0, timestamp, 0, 1, template.getWinner());
+        }
+        // the winner may have come from a remote miner rather than the local search
+        ParallelMiner.Solution solution = template.getWinner().get();
+        miningStats.recordSearch(System.nanoTime() - searchStarted);
+        if (solution == null || isCancelled()) {
+            miningStats.recordCancelledJob();
+            return null; // a competing block arrived first
+        }
+        miningStats.recordBlockMined();
+
+        nonce = solution.getNonce();
+        extraNonce = solution.getExtraNonce();
+        timestamp = solution.getTimestamp();
+        blockHash = solution.getBlockHash();
+        Transaction minerRewardTransaction = createMinerRewardTransaction(node, validTransactions, blockHeight,
+                extraNonce);
+        validTransactions.add(minerRewardTransaction); // Add miner reward at the end
         String merkleRoot = merkleRootHash(validTransactions);
-        String outputHash = calculateBlockHash(previousHash, timestamp, merkleRoot);
 
         // Create a new block with only the valid transactions
-        block = new Block(previousHash, minerAddress, timestamp, validTransactions, merkleRoot, outputHash,
-                nonce);
+        block = new Block(Hash256.fromHex(previousHash), minerAddress, timestamp, validTransactions, merkleRoot,
+                Hash256.fromHex(blockHash), nonce, difficultyBits);
 
         // Process UTXOs for valid transactions, including miner reward
         for (Transaction transaction : validTransactions) {
-            String transactionHash = transaction.getHash();
-            // Inputs were already removed from tempUTXOPool, process outputs now
+            Hash256 transactionHash = transaction.getHash();
             for (int i = 0; i < transaction.getOutputs().size(); i++) {
                 Output output = transaction.getOutputs().get(i);
                 UTXOKey utxoKey = new UTXOKey(transactionHash, i);
-                UTXO utxo = new UTXO(output.getValue(), output.getAddress());
-                node.getUTXOPool().addUTXO(utxoKey, utxo);
+                UTXO utxo = new UTXO(output.getValue(), output.getAddressEntry());
+                blockView.addUTXO(utxoKey, utxo);
             }
-            // Remove the transaction from mempool, if applicable
+        }
+        // the block's spends and new outputs reach the pool as the block reaches the
+        // chain, unless a block connected during the search got there first
+        if (!node.connectBlock(block, blockView)) {
+            System.out.println("Tip moved while mining; block " + blockHash + " dropped.");
+            miningStats.recordStaleBlock();
+            return null;
+        }
+        // Remove the transactions from mempool, once their outputs are spent in the pool
+        for (Transaction transaction : validTransactions) {
             if (transaction != minerRewardTransaction) {
                 node.getMempool().removeTransactionFromMempool(transaction);
             }
@@ -198,13 +331,14 @@ public class Mining {
         return block;
     }
 
-    private Transaction createMinerRewardTransaction(Node node, ArrayList<Transaction> transactions, int blockHeight) {
+    private Transaction createMinerRewardTransaction(Node node, ArrayList<Transaction> transactions, int blockHeight,
+            long extraNonce) {
         // Create a new output with the miner's reward
 
         ArrayList<Input> inputList = new ArrayList<>();
         ArrayList<Output> outputList = new ArrayList<>();
 
-        double minerGains = minerReward;
+        long minerGains = minerReward;
         if (transactions.size() != 0) {
             for (Transaction transaction : transactions) {
                 minerGains += transaction.getFee();
@@ -213,6 +347,7 @@ public class Mining {
 
         String prevTxIdToUse = "reward" + Integer.toString(blockHeight);
         Input minerRewardInput = new Input(prevTxIdToUse, -1, null, node.getUserWallet().getPublicKey());
+        minerRewardInput.setExtraNonce(extraNonce);
         Output minerRewardOutput = new Output(minerGains, minerAddress);
         inputList.add(minerRewardInput);
         outputList.add(minerRewardOutput);
@@ -233,7 +368,11 @@ public class Mining {
         return hexString.toString();
     }
 
-    public int getDifficulty() {
-        return this.difficulty;
+    public int getDifficultyBits() {
+        return this.difficultyBits;
+    }
+
+    public void setDifficultyBits(int difficultyBits) {
+        this.difficultyBits = difficultyBits;
     }
 }
\ No newline at end of file
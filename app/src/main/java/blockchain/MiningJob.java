@@ -0,0 +1,26 @@
+package blockchain;
+
+// Cancellation token for one block template. The nonce search polls it every
+// Mining.CANCEL_CHECK_INTERVAL hashes, so a cancelled job stops hashing almost
+// immediately and mineBlock returns null without touching the UTXO pool.
+public class MiningJob {
+    private final String previousHash;
+    private volatile boolean cancelled = false;
+
+    public MiningJob(String previousHash) {
+        this.previousHash = previousHash;
+    }
+
+    // the tip this job is building on
+    public String getPreviousHash() {
+        return this.previousHash;
+    }
+
+    public void cancel() {
+        this.cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return this.cancelled;
+    }
+}
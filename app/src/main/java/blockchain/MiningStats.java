@@ -0,0 +1,199 @@
+package blockchain;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Mining telemetry: hashes and hashing time per worker, time spent building
+// block templates and searching nonces, how many jobs ended without a block, and
+// how long validation work waited behind mining (see CpuBudget).
+// Counters only ever grow; rates come from comparing two snapshots.
+public class MiningStats {
+    private final Map<Integer, WorkerCounters> workers = new ConcurrentHashMap<>();
+    private final LongAdder templatesBuilt = new LongAdder();
+    private final LongAdder templateNanos = new LongAdder();
+    private final LongAdder searches = new LongAdder();
+    private final LongAdder searchNanos = new LongAdder();
+    private final LongAdder blocksMined = new LongAdder();
+    private final LongAdder jobsCancelled = new LongAdder();
+    private final LongAdder staleBlocks = new LongAdder();
+    private final LongAdder validations = new LongAdder();
+    private final LongAdder validationQueueNanos = new LongAdder();
+    private final LongAdder validationNanos = new LongAdder();
+
+    private static class WorkerCounters {
+        private final LongAdder hashes = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+    }
+
+    // called once per scanned chunk, so the overhead is a few adds per 4096 hashes
+    public void recordHashes(int worker, long hashes, long nanos) {
+        WorkerCounters counters = workers.computeIfAbsent(worker, w -> new WorkerCounters());
+        counters.hashes.add(hashes);
+        counters.nanos.add(nanos);
+    }
+
+    public void recordTemplate(long nanos) {
+        templatesBuilt.increment();
+        templateNanos.add(nanos);
+    }
+
+    public void recordSearch(long nanos) {
+        searches.increment();
+        searchNanos.add(nanos);
+    }
+
+    public void recordBlockMined() {
+        blocksMined.increment();
+    }
+
+    // the job was cancelled before its nonce search found a solution
+    public void recordCancelledJob() {
+        jobsCancelled.increment();
+    }
+
+    // a solution was found (and counted as mined), but the tip had already moved on
+    public void recordStaleBlock() {
+        staleBlocks.increment();
+    }
+
+    // queueNanos: time a validation task waited for a free slot
+    public void recordValidation(long queueNanos, long nanos) {
+        validations.increment();
+        validationQueueNanos.add(queueNanos);
+        validationNanos.add(nanos);
+    }
+
+    public Snapshot snapshot() {
+        Map<Integer, long[]> workerTotals = new TreeMap<>();
+        workers.forEach((worker, counters) -> workerTotals.put(worker,
+                new long[] { counters.hashes.sum(), counters.nanos.sum() }));
+        return new Snapshot(System.nanoTime(), workerTotals, templatesBuilt.sum(), templateNanos.sum(),
+                searches.sum(), searchNanos.sum(), blocksMined.sum(), jobsCancelled.sum(), staleBlocks.sum(),
+                validations.sum(), validationQueueNanos.sum(), validationNanos.sum());
+    }
+
+    // One line describing what happened between previous and now.
+    public static String summary(Snapshot previous, Snapshot now) {
+        double seconds = Math.max(now.takenAt - previous.takenAt, 1) / 1e9;
+        StringBuilder summary = new StringBuilder();
+        summary.append(String.format("Mining over %.0fs: %.3f MH/s", seconds,
+                (now.getTotalHashes() - previous.getTotalHashes()) / seconds / 1e6));
+        summary.append(" | per worker (while hashing):");
+        for (int worker : now.workerTotals.keySet()) {
+            summary.append(String.format(" #%d %.3f MH/s", worker, now.getWorkerHashRate(previous, worker) / 1e6));
+        }
+        long templates = now.templatesBuilt - previous.templatesBuilt;
+        long searches = now.searches - previous.searches;
+        summary.append(String.format(" | templates: %d, avg %.2f ms", templates,
+                templates == 0 ? 0 : (now.templateNanos - previous.templateNanos) / 1e6 / templates));
+        summary.append(String.format(" | searches: %d, avg %.2f s", searches,
+                searches == 0 ? 0 : (now.searchNanos - previous.searchNanos) / 1e9 / searches));
+        summary.append(String.format(" | blocks: %d found (%d stale), %d jobs cancelled",
+                now.blocksMined - previous.blocksMined, now.staleBlocks - previous.staleBlocks,
+                now.jobsCancelled - previous.jobsCancelled));
+        long validations = now.validations - previous.validations;
+        summary.append(String.format(" | validations: %d, avg queued %.2f ms, avg run %.2f ms", validations,
+                validations == 0 ? 0 : (now.validationQueueNanos - previous.validationQueueNanos) / 1e6 / validations,
+                validations == 0 ? 0 : (now.validationNanos - previous.validationNanos) / 1e6 / validations));
+        return summary.toString();
+    }
+
+    public static class Snapshot {
+        private final long takenAt;
+        private final Map<Integer, long[]> workerTotals; // worker -> { hashes, hashing nanos }
+        private final long templatesBuilt;
+        private final long templateNanos;
+        private final long searches;
+        private final long searchNanos;
+        private final long blocksMined;
+        private final long jobsCancelled;
+        private final long staleBlocks;
+        private final long validations;
+        private final long validationQueueNanos;
+        private final long validationNanos;
+
+        private Snapshot(long takenAt, Map<Integer, long[]> workerTotals, long templatesBuilt, long templateNanos,
+                long searches, long searchNanos, long blocksMined, long jobsCancelled, long staleBlocks,
+                long validations, long validationQueueNanos, long validationNanos) {
+            this.takenAt = takenAt;
+            this.workerTotals = workerTotals;
+            this.templatesBuilt = templatesBuilt;
+            this.templateNanos = templateNanos;
+            this.searches = searches;
+            this.searchNanos = searchNanos;
+            this.blocksMined = blocksMined;
+            this.jobsCancelled = jobsCancelled;
+            this.staleBlocks = staleBlocks;
+            this.validations = validations;
+            this.validationQueueNanos = validationQueueNanos;
+            this.validationNanos = validationNanos;
+        }
+
+        public long getTotalHashes() {
+            long total = 0;
+            for (long[] totals : workerTotals.values()) {
+                total += totals[0];
+            }
+            return total;
+        }
+
+        public long getWorkerHashes(int worker) {
+            long[] totals = workerTotals.get(worker);
+            return totals == null ? 0 : totals[0];
+        }
+
+        // Hashes per second the worker managed while it was actually hashing; a
+        // worker falling behind its siblings points at throttling on its core.
+        public double getWorkerHashRate(Snapshot previous, int worker) {
+            long[] totals = workerTotals.get(worker);
+            if (totals == null) {
+                return 0;
+            }
+            long[] before = previous.workerTotals.getOrDefault(worker, new long[2]);
+            long nanos = totals[1] - before[1];
+            return nanos == 0 ? 0 : (totals[0] - before[0]) * 1e9 / nanos;
+        }
+
+        public long getTemplatesBuilt() {
+            return this.templatesBuilt;
+        }
+
+        public long getTemplateNanos() {
+            return this.templateNanos;
+        }
+
+        public long getSearches() {
+            return this.searches;
+        }
+
+        public long getSearchNanos() {
+            return this.searchNanos;
+        }
+
+        public long getBlocksMined() {
+            return this.blocksMined;
+        }
+
+        public long getJobsCancelled() {
+            return this.jobsCancelled;
+        }
+
+        public long getStaleBlocks() {
+            return this.staleBlocks;
+        }
+
+        public long getValidations() {
+            return this.validations;
+        }
+
+        public long getValidationQueueNanos() {
+            return this.validationQueueNanos;
+        }
+
+        public long getValidationNanos() {
+            return this.validationNanos;
+        }
+    }
+}
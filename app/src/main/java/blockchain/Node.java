@@ -1,18 +1,26 @@
 package blockchain;
 
 import java.io.File;
+import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.bitcoinj.core.AddressFormatException;
 
@@ -31,12 +39,50 @@ public class Node {
 
     private PeerManager peerManager;
     private volatile boolean shouldInterrupt = false;
-    private Set<String> processedTransactions = new HashSet<>();
-    private Set<String> processedBlocks = new HashSet<>();
+    private volatile MiningJob currentMiningJob;
+    private Set<Hash256> processedTransactions = new HashSet<>();
+    private Set<Hash256> processedBlocks = new HashSet<>();
     private Wallet userWallet = new Wallet();
     private ArrayList<Wallet> userWallets = new ArrayList<Wallet>();
     private WalletServer walletServer;
-    private double minerReward = 2;
+    private long minerReward = 2 * Amount.COIN;
+    // nonce search workers shared by every block this node mines; -Dmining.threads=N overrides
+    private final ParallelMiner parallelMiner = new ParallelMiner(
+            Integer.getInteger("mining.threads", Runtime.getRuntime().availableProcessors()));
+    private final HashingEngine hashingEngine = HashingEngine.configured();
+    private final MiningStats miningStats = new MiningStats();
+    // caps mining's CPU use and backs it off while peers' blocks are validated
+    private final CpuBudget cpuBudget = new CpuBudget(miningStats);
+    // prints a MiningStats summary every -Dmining.statsInterval seconds (default 60) while mining
+    private final ScheduledExecutorService statsReporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "mining-stats");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private boolean statsReporterStarted = false;
+    // trees of blocks peers recently asked proofs for; -Dmerkle.cacheSize overrides
+    private final MerkleTreeCache merkleTreeCache = new MerkleTreeCache(Integer.getInteger("merkle.cacheSize", 64));
+    // proofs asked of peers and not yet received; each is dropped after -Dmerkle.proofTimeout seconds
+    private final Map<MerkleProofRequest, CompletableFuture<MerkleProof>> pendingProofs = new ConcurrentHashMap<>();
+    // signatures already verified at mempool admission, skipped when their block arrives;
+    // -Dsignature.cacheSize overrides
+    private final SignatureCache signatureCache = new SignatureCache(
+            Integer.getInteger("signature.cacheSize", 100000));
+    // checks a block's input signatures in parallel; -Dvalidation.threads=N overrides
+    private final SignatureVerifier signatureVerifier = new SignatureVerifier(
+            Integer.getInteger("validation.threads", Runtime.getRuntime().availableProcessors()), signatureCache);
+    // serves work to RemoteMiner processes when -Dwork.port is set
+    private WorkServer workServer;
+    // undo records of the last -Dundo.depth (default 100) blocks connected, tip last;
+    // a reorg that forks below them rebuilds the UTXO set from genesis instead
+    private final int undoDepth = Integer.getInteger("undo.depth", 100);
+    private final ArrayDeque<BlockUndo> blockUndo = new ArrayDeque<>(); // guarded by chainLock
+    // held while blocks are connected or the chain is replaced, so the chain, the
+    // UTXO pool and the undo records always change together
+    private final Object chainLock = new Object();
+    // blocks stamped more than -Dblock.maxFutureMillis (default two hours) ahead
+    // of the local clock are rejected
+    private static final long MAX_FUTURE_BLOCK_TIME = Long.getLong("block.maxFutureMillis", 2 * 60 * 60 * 1000L);
 
     public void halveMinerReward() {
         this.minerReward /= 2;
@@ -46,19 +92,19 @@ public class Node {
         this.port = port;
     }
 
-    public Set<String> getProcessedTransactions() {
+    public Set<Hash256> getProcessedTransactions() {
         return this.processedTransactions;
     }
 
-    public Set<String> getProcessedBlocks() {
+    public Set<Hash256> getProcessedBlocks() {
         return this.processedBlocks;
     }
 
-    public void addProcessedBlocks(String blockHash) {
+    public void addProcessedBlocks(Hash256 blockHash) {
         processedBlocks.add(blockHash);
     }
 
-    public void addProcessedTransactions(String txHash) {
+    public void addProcessedTransactions(Hash256 txHash) {
         processedTransactions.add(txHash);
     }
 
@@ -82,12 +128,31 @@ public class Node {
         if (peerManager.getPeerConnections().isEmpty()) {
             System.out.println(peerManager.getPeerConnections());
             File blockChainFile = new File("blockchain.ser");
-            if (!blockChainFile.exists()) {
+            // null as well for a file in an older format, which is then started afresh
+            Blockchain tempBlockchain = blockChainFile.exists() ? FileSaver.loadBlockchain("blockchain.ser") : null;
+            if (tempBlockchain == null) {
                 System.out.println("Creating new blockchain.");
                 blockchain = new Blockchain();
+                if (utxoPool.size() > 0) {
+                    System.out.println("Discarding a UTXO set saved without its blockchain.");
+                    utxoPool.emptyUTXOPool();
+                }
             } else {
                 System.out.println("Fetching existing blockchain.");
-                Blockchain tempBlockchain = FileSaver.loadBlockchain("blockchain.ser");
+                if (isUTXOStoreAt(tempBlockchain)) {
+                    // the mapped UTXO set was flushed at this chain's tip; nothing to replay
+                    blockchain = tempBlockchain;
+                    for (Block block : blockchain.getChain()) {
+                        processedBlocks.add(block.getBlockHash());
+                        for (Transaction transactions : block.getBlockTransactions()) {
+                            processedTransactions.add(transactions.getHash());
+                        }
+                    }
+                    return;
+                }
+                if (utxoPool.getStore() instanceof MappedUTXOStore) {
+                    System.out.println("UTXO store does not match the saved blockchain; rebuilding it.");
+                }
                 UTXOPool tempUTXOPool = new UTXOPool();
                 for (int j = 0; j < tempBlockchain.getChain().size(); j++) {
                     Block block = tempBlockchain.getChain().get(j);
@@ -96,19 +161,19 @@ public class Node {
                             ArrayList<Output> outputs = transaction.getOutputs();
                             ArrayList<Input> inputs = transaction.getInputs();
                             boolean validTransaction = false;
-                            String transactionString = transaction.getTransactionString();
+                            byte[] signingBytes = transaction.getSigningBytes();
                             for (Input input : inputs) {
                                 PublicKey senderPublicKey = input.getPublicKey();
-                                validTransaction = input.verifySignature(senderPublicKey, transactionString);
+                                validTransaction = input.verifySignature(senderPublicKey, signingBytes);
                                 if (!validTransaction) {
                                     System.out.println("Invalid Signature: " + input.getTxId());
                                     break;
                                 }
                             }
                             if (validTransaction) {
-                                String transactionHash = transaction.getHash();
+                                Hash256 transactionHash = transaction.getHash();
                                 for (Input input : inputs) {
-                                    String txHash = input.getTxId();
+                                    Hash256 txHash = input.getTxId();
                                     int index = input.getOutputIndex();
                                     UTXOKey keyToRemove = new UTXOKey(txHash, index);
                                     if (tempUTXOPool.containsUTXOKey(keyToRemove)) {
@@ -119,7 +184,7 @@ public class Node {
                                                         + "\n TX Hash of a previous UTXO (supposedly): " + txHash
                                                         + "\n Output index of that UTXO: " + index
                                                         + "\n Amount sent: "
-                                                        + transaction.getOutputs().get(0).getValue());
+                                                        + Amount.format(transaction.getOutputs().get(0).getValue()));
                                         blockchain.getChain().clear();
                                         for (int i = 0; i <= j; i++) {
                                             Block blockToCopy = tempBlockchain.getChain().get(i);
@@ -137,7 +202,7 @@ public class Node {
                                                                                        // index
                                                                                        // as the
                                                                                        // key
-                                    UTXO utxo = new UTXO(output.getValue(), output.getAddress());
+                                    UTXO utxo = new UTXO(output.getValue(), output.getAddressEntry());
                                     tempUTXOPool.addUTXO(utxoKey, utxo); // Add the new UTXO to the pool
                                 }
                             } else {
@@ -157,13 +222,12 @@ public class Node {
                             }
 
                         } else {
-                            if (!(transaction.getInputs().get(0).getTxId().startsWith("reward"))
-                                    && !(transaction.getInputs().get(0).getTxId().equals("genesis"))) {
+                            if (!transaction.getInputs().get(0).isCoinbase()) {
 
                                 throw new InvalidBlockchainException("Invalid block received: Invalid Reward Block.");
                             } else {
                                 ArrayList<Output> outputs = transaction.getOutputs();
-                                String transactionHash = transaction.getHash();
+                                Hash256 transactionHash = transaction.getHash();
 
                                 for (int i = 0; i < outputs.size(); i++) {
                                     Output output = outputs.get(i);
@@ -172,7 +236,7 @@ public class Node {
                                                                                        // index
                                                                                        // as the
                                                                                        // key
-                                    UTXO utxo = new UTXO(output.getValue(), output.getAddress());
+                                    UTXO utxo = new UTXO(output.getValue(), output.getAddressEntry());
                                     tempUTXOPool.addUTXO(utxoKey, utxo); // Add the new UTXO to the pool
                                 }
                             }
@@ -187,8 +251,10 @@ public class Node {
                         processedTransactions.add(transactions.getHash());
                     }
                 }
-                utxoPool.getUTXOMap().clear();
-                utxoPool = tempUTXOPool;
+                synchronized (chainLock) {
+                    setUTXOPool(tempUTXOPool);
+                    recordUTXOTip();
+                }
             }
         } else {
             peerManager.requestBlockchainFromPeers();
@@ -208,8 +274,34 @@ public class Node {
         }
     }
 
+    // Stops the mining loop altogether (as opposed to cancelStaleMiningJob, which
+    // only abandons the block currently being mined).
     public void setShouldInterrupt(boolean bool) {
         this.shouldInterrupt = bool;
+        if (bool) {
+            MiningJob job = currentMiningJob;
+            if (job != null) {
+                job.cancel();
+            }
+        }
+    }
+
+    // Called whenever the chain tip changes; abandons the current mining job if it
+    // was building on a different tip, so the mining loop restarts on a fresh
+    // template instead of finishing a block that would be rejected.
+    public void cancelStaleMiningJob() {
+        MiningJob job = currentMiningJob;
+        if (job == null || blockchain.getChain().isEmpty()) {
+            return;
+        }
+        Hash256 tipHash = blockchain.getChain().get(blockchain.getChain().size() - 1).getBlockHash();
+        if (!job.getPreviousHash().equals(tipHash.toString())) {
+            job.cancel();
+        }
+    }
+
+    private boolean isTip(Hash256 blockHash) {
+        return blockHash.equals(blockchain.getChain().get(blockchain.getChain().size() - 1).getBlockHash());
     }
 
     public Blockchain getBlockchain() {
@@ -218,7 +310,7 @@ public class Node {
 
     public Block createGenesisBlock(String senderAddress) {
         Input input = new Input("genesis", -1, null, userWallet.getPublicKey());
-        Output output = new Output(25, senderAddress);
+        Output output = new Output(25 * Amount.COIN, senderAddress);
         ArrayList<Input> inputs = new ArrayList<Input>();
         inputs.add(input);
         ArrayList<Output> outputs = new ArrayList<Output>();
@@ -227,92 +319,268 @@ public class Node {
         ArrayList<Transaction> genesisList = new ArrayList<Transaction>();
         genesisList.add(genesisTransaction);
         Mining mining = new Mining("0", senderAddress, utxoPool, minerReward);
+        mining.setParallelMiner(parallelMiner);
+        mining.setHashingEngine(hashingEngine);
+        mining.setMiningStats(miningStats);
+        mining.setCpuBudget(cpuBudget);
+        mining.setDifficultyBits(Difficulty.nextBits(blockchain));
         Block genesisBlock = new Block(genesisList, mining);
-        UTXOKey utxoKey = new UTXOKey(genesisTransaction.getHash(), 0);
-        UTXO utxo = new UTXO(output.getValue(), output.getAddress());
-        utxoPool.addUTXO(utxoKey, utxo);
+        try (UTXOView view = new UTXOView(utxoPool)) {
+            view.connectBlock(genesisBlock);
+            if (!connectBlock(genesisBlock, view)) {
+                return null; // a peer's genesis block got there first
+            }
+        }
         System.out.println("Genesis Block created.");
 
         return genesisBlock;
     }
 
     public boolean validateTransaction(Transaction transaction) {
-        // Verifies the transaction signature's validity
-
-        for (Input input : transaction.getInputs()) {
-            PublicKey publicKey = input.getPublicKey();
-            if (!input.verifySignature(publicKey, transaction.getTransactionString())) {
-                return false; // If any input fails verification, the transaction is invalid
-            }
-        }
-        return true; // If all inputs are valid, return true
+        // Verifies the transaction signature's validity; every input must verify.
+        // Successful checks are cached, so the transaction's block skips them.
+        return signatureVerifier.verifyAll(SignatureVerifier.checksFor(transaction));
     }
 
     public boolean validateBlock(Block block) {
         // Validate the block itself
         // For each transaction in the block, validate it, then update the UTXO pool and
         // mempool accordingly
-        if (block.getBlockTransactions().size() == 1) {
-            if (block.getBlockTransactions().get(0).getInputs().get(0).getTxId().equals("genesis")) {
-                return true;
-            }
+        if (!hasValidHeader(block, blockchain.getChain())) {
+            return false;
+        }
+        // every input signature of the block in one batch; a single bad one invalidates the block
+        if (!isGenesisBlock(block)
+                && !signatureVerifier.verifyAll(SignatureVerifier.checksFor(block.getBlockTransactions()))) {
+            return false;
         }
 
+        // the block is connected to a view first, so one that fails half way leaves
+        // the pool untouched, and its changes reach the pool in one batch along
+        // with the block reaching the chain
+        try (UTXOView view = new UTXOView(utxoPool)) {
+            if (!view.connectBlock(block)) {
+                return false;
+            }
+            if (!connectBlock(block, view)) {
+                System.out.println("Block does not extend the tip, or the UTXO pool changed while it was validated.");
+                return false;
+            }
+        }
         for (Transaction transaction : block.getBlockTransactions()) {
-            if (transaction.getInputs().get(0).getTxId().startsWith("reward")) {
-                continue;
+            if (!transaction.getInputs().get(0).isMinerReward()) {
+                this.mempool.removeTransactionFromMempool(transaction);
+            }
+        }
+
+        return true;
+    }
+
+    // The checks on a block's header: its proof of work, its merkle root, a
+    // timestamp not too far ahead of the local clock and, but for the genesis
+    // block, its target and timestamp against the chain below it. Prints why a
+    // block fails them.
+    private static boolean hasValidHeader(Block block, List<Block> below) {
+        if (block.getTimeStamp() > System.currentTimeMillis() + MAX_FUTURE_BLOCK_TIME) {
+            System.out.println("Block timestamp is too far in the future.");
+            return false;
+        }
+        if (!block.hasValidProofOfWork()) {
+            System.out.println("Block hash does not match its header or misses its target.");
+            return false;
+        }
+        if (!new MerkleTree(block.getBlockTransactions()).getRootHex().equals(block.getMerkleRoot())) {
+            System.out.println("Block merkle root does not match its transactions.");
+            return false;
+        }
+        if (!isGenesisBlock(block) && block.getDifficultyBits() != Difficulty.nextBits(below)) {
+            System.out.println("Block target does not follow the retargeting schedule.");
+            return false;
+        }
+        if (!below.isEmpty() && block.getTimeStamp() <= Difficulty.medianTimePast(below)) {
+            System.out.println("Block timestamp is not later than the median of the blocks below it.");
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean isGenesisBlock(Block block) {
+        return block.getBlockTransactions().size() == 1
+                && block.getBlockTransactions().get(0).getInputs().get(0).isGenesis();
+    }
+
+    // Puts block, whose UTXO changes view holds, on top of the chain. The tip
+    // check, the commit of view, the block's undo record and the chain change
+    // under chainLock, so a block is either connected completely or not at all.
+    // Returns false, changing nothing, if block does not extend the tip or the
+    // pool has moved since view was opened.
+    public boolean connectBlock(Block block, UTXOView view) {
+        synchronized (chainLock) {
+            ArrayList<Block> chain = blockchain.getChain();
+            Hash256 tipHash = chain.isEmpty() ? Hash256.ZERO : chain.get(chain.size() - 1).getBlockHash();
+            if (!block.getPreviousHash().equals(tipHash)) {
+                return false;
             }
-            if (!validateTransaction(transaction)) {
-                return false; // If any transaction is invalid, the block is invalid
+            BlockUndo undo = new BlockUndo(block.getBlockHash(), view.undoDelta());
+            if (!view.commit()) {
+                return false;
             }
+            recordBlockUndo(undo);
+            blockchain.addBlock(block);
+            block.setBlockNumber(blockchain.getBlockHeight());
+            recordUTXOTip();
+            processedBlocks.add(block.getBlockHash());
+            for (Transaction transaction : block.getBlockTransactions()) {
+                processedTransactions.add(transaction.getHash());
+            }
+            return true;
         }
+    }
 
-        for (Transaction transaction : block.getBlockTransactions()) {
-            if (transaction.getInputs().get(0).getTxId().startsWith("reward")) {
-                String transactionHash = transaction.getHash();
-
-                ArrayList<Output> outputs = transaction.getOutputs();
-                for (int i = 0; i < outputs.size(); i++) {
-                    Output output = outputs.get(i);
-                    UTXOKey utxoKey = new UTXOKey(transactionHash, i); // Use the transaction hash and output
-                                                                       // index
-                                                                       // as the
-                                                                       // key
-                    UTXO utxo = new UTXO(output.getValue(), output.getAddress());
-                    utxoPool.addUTXO(utxoKey, utxo); // Add the new UTXO to the pool
-                }
-                continue;
+    // Tells a mapped UTXO store which block its contents are the state after, so
+    // a restart can tell whether it still matches blockchain.ser. Called with
+    // chainLock held.
+    private void recordUTXOTip() {
+        if (utxoPool.getStore() instanceof MappedUTXOStore) {
+            ArrayList<Block> chain = blockchain.getChain();
+            ((MappedUTXOStore) utxoPool.getStore())
+                    .setTipHash(chain.isEmpty() ? null : chain.get(chain.size() - 1).getBlockHash());
+        }
+    }
+
+    // whether the mapped UTXO store holds the state after saved's tip
+    private boolean isUTXOStoreAt(Blockchain saved) {
+        if (!(utxoPool.getStore() instanceof MappedUTXOStore) || saved.getChain().isEmpty()) {
+            return false;
+        }
+        Hash256 tipHash = saved.getChain().get(saved.getChain().size() - 1).getBlockHash();
+        return tipHash.equals(((MappedUTXOStore) utxoPool.getStore()).getTipHash());
+    }
+
+    // Called with chainLock held
+    private void recordBlockUndo(BlockUndo undo) {
+        blockUndo.addLast(undo);
+        while (blockUndo.size() > undoDepth) {
+            blockUndo.removeFirst();
+        }
+    }
+
+    // Switches to received if it has more work than the current chain. Only the blocks above the last block
+    // both chains share are disconnected and connected, all in one view of the
+    // pool: if one of them is invalid the view is dropped and neither the pool
+    // nor the chain has changed. A fork older than the undo records falls back
+    // to rebuilding the UTXO set from genesis. Runs under chainLock, so no mined
+    // or received block is connected half way through.
+    public void adoptChain(Blockchain received) throws InvalidBlockchainException {
+        synchronized (chainLock) {
+            adoptChainLocked(received);
+        }
+    }
+
+    private void adoptChainLocked(Blockchain received) throws InvalidBlockchainException {
+        ArrayList<Block> current = blockchain.getChain();
+        ArrayList<Block> blocks = received.getChain();
+        if (Difficulty.chainWork(blocks).compareTo(Difficulty.chainWork(current)) <= 0) {
+            throw new InvalidBlockchainException(
+                    "Received blockchain has no more work than the current one. Keeping the original blockchain.");
+        }
+        int shared = 0;
+        while (shared < current.size() && shared < blocks.size()
+                && current.get(shared).getBlockHash().equals(blocks.get(shared).getBlockHash())) {
+            shared++;
+        }
+
+        List<BlockUndo> kept = new ArrayList<>();
+        List<BlockUndo> disconnected = new ArrayList<>();
+        int depth = current.size() - shared;
+        if (shared > 0 && depth <= blockUndo.size()) {
+            for (BlockUndo undo : blockUndo) {
+                (kept.size() < blockUndo.size() - depth ? kept : disconnected).add(undo);
             }
-            ArrayList<Input> inputs = transaction.getInputs();
-            ArrayList<Output> outputs = transaction.getOutputs();
-            for (Input input : inputs) {
-                String txHash = input.getTxId();
-                int index = input.getOutputIndex();
-                UTXOKey keyToRemove = new UTXOKey(txHash, index);
-                if (this.utxoPool.containsUTXOKey(keyToRemove)) {
-                    this.utxoPool.removeFromUTXOPool(keyToRemove);
-                } else {
-                    // stop checking and make a new blockchain
-                    System.out.println("Cannot find UTXO- either spent or never existed.");
-                    return false;
+        }
+        boolean undoable = shared > 0 && disconnected.size() == current.size() - shared;
+        for (int i = 0; undoable && i < disconnected.size(); i++) {
+            undoable = disconnected.get(i).getBlockHash().equals(current.get(shared + i).getBlockHash());
+        }
+
+        List<BlockUndo> connected = new ArrayList<>();
+        if (undoable) {
+            try (UTXOView view = new UTXOView(utxoPool)) {
+                for (int i = disconnected.size() - 1; i >= 0; i--) {
+                    view.disconnectBlock(disconnected.get(i));
+                }
+                connectBlocks(view, blocks, shared, connected);
+                if (!view.commit()) {
+                    throw new InvalidBlockchainException(
+                            "UTXO pool changed during the reorganization. Keeping the original blockchain.");
                 }
             }
-            this.mempool.removeTransactionFromMempool(transaction);
-
-            String transactionHash = transaction.getHash();
-
-            for (int i = 0; i < outputs.size(); i++) {
-                Output output = outputs.get(i);
-                UTXOKey utxoKey = new UTXOKey(transactionHash, i); // Use the transaction hash and output
-                                                                   // index
-                                                                   // as the
-                                                                   // key
-                UTXO utxo = new UTXO(output.getValue(), output.getAddress());
-                utxoPool.addUTXO(utxoKey, utxo); // Add the new UTXO to the pool
+            System.out.println("Reorganized " + disconnected.size() + " block(s) deep onto a chain of "
+                    + blocks.size() + ".");
+        } else {
+            UTXOPool rebuiltUTXOPool = new UTXOPool();
+            try (UTXOView view = new UTXOView(rebuiltUTXOPool)) {
+                connectBlocks(view, blocks, 0, connected);
+                view.commit();
+            }
+            utxoPool.replaceWith(rebuiltUTXOPool);
+            kept.clear();
+        }
+        blockchain.replaceChain(received);
+        recordUTXOTip();
+        blockUndo.clear();
+        kept.forEach(this::recordBlockUndo);
+        connected.forEach(this::recordBlockUndo);
+
+        // the new blocks' transactions leave the mempool; those of the blocks left
+        // behind go back to it, unless the new chain has them too
+        Set<Hash256> adopted = new HashSet<>();
+        for (Block block : blocks.subList(shared, blocks.size())) {
+            processedBlocks.add(block.getBlockHash());
+            for (Transaction transaction : block.getBlockTransactions()) {
+                adopted.add(transaction.getHash());
+                processedTransactions.add(transaction.getHash());
+                mempool.removeTransactionFromMempool(transaction);
             }
         }
+        for (Block block : current.subList(shared, current.size())) {
+            for (Transaction transaction : block.getBlockTransactions()) {
+                if (!transaction.getInputs().get(0).isCoinbase() && !adopted.contains(transaction.getHash())) {
+                    mempool.addTransactionToMempool(transaction);
+                }
+            }
+        }
+    }
 
-        return true;
+    // Checks and connects chain[from..] to view, collecting each block's undo
+    // record. Every block gets the checks validateBlock makes, against the chain
+    // below it.
+    private void connectBlocks(UTXOView view, List<Block> chain, int from, List<BlockUndo> undo)
+            throws InvalidBlockchainException {
+        for (int j = from; j < chain.size(); j++) {
+            Block block = chain.get(j);
+            Hash256 parentHash = j == 0 ? Hash256.ZERO : chain.get(j - 1).getBlockHash();
+            if (!block.getPreviousHash().equals(parentHash)) {
+                throw new InvalidBlockchainException(
+                        "Invalid block received: not linked to its parent. Keeping the original blockchain.");
+            }
+            if (!hasValidHeader(block, chain.subList(0, j))) {
+                throw new InvalidBlockchainException(
+                        "Invalid block received: Invalid header. Keeping the original blockchain.");
+            }
+            // genesis block doesn't have a signature; checksFor skips rewards
+            if (j > 0 && !signatureVerifier.verifyAll(SignatureVerifier.checksFor(block.getBlockTransactions()))) {
+                throw new InvalidBlockchainException(
+                        "Invalid block received: Invalid Transaction Signature. Keeping the original blockchain.");
+            }
+            UTXOView blockView = new UTXOView(view);
+            if (!blockView.connectBlock(block)) {
+                throw new InvalidBlockchainException(
+                        "Invalid block received: UTXO not found in pool. Keeping the original blockchain.");
+            }
+            undo.add(new BlockUndo(block.getBlockHash(), blockView.undoDelta()));
+            blockView.commit();
+        }
     }
 
     public void startServer() {
@@ -330,28 +598,51 @@ public class Node {
         taskExecutor.submit(this::startServer);
     }
 
+    private synchronized void startStatsReporter() {
+        if (statsReporterStarted) {
+            return;
+        }
+        statsReporterStarted = true;
+        long interval = Long.getLong("mining.statsInterval", 60L);
+        MiningStats.Snapshot[] previous = { miningStats.snapshot() };
+        statsReporter.scheduleAtFixedRate(() -> {
+            MiningStats.Snapshot now = miningStats.snapshot();
+            System.out.println(MiningStats.summary(previous[0], now));
+            previous[0] = now;
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    private synchronized void startWorkServer() {
+        Integer workPort = Integer.getInteger("work.port");
+        if (workPort == null || workServer != null) {
+            return;
+        }
+        workServer = new WorkServer(workPort);
+        taskExecutor.submit(workServer);
+    }
+
     // Starts the mining process in a separate thread
     public void startMining(Wallet userWallet, String minerAddress, TextArea blockInfoTextArea, TextField userBalance) {
+        startStatsReporter();
+        startWorkServer();
         taskExecutor.submit(() -> {
             while (!shouldInterrupt && !Thread.currentThread().isInterrupted()) {
                 try {
                     if (blockchain.getChain().isEmpty()) {
                         Block genesisBlock = createGenesisBlock(minerAddress);
-                        processedBlocks.add(genesisBlock.getBlockHash());
-                        for (Transaction transaction : genesisBlock.getBlockTransactions()) {
-                            processedTransactions.add(transaction.getHash());
+                        if (genesisBlock == null) {
+                            continue;
                         }
-                        blockchain.addBlock(genesisBlock);
 
                         UpdateBlockchain updateBlockchain = new UpdateBlockchain(blockchain);
                         utxoPool.getUTXOMap().forEach(
                                 (key, value) -> System.out
                                         .println("UTXO Pool after block " + blockchain.getBlockHeight() + ": Address: "
                                                 + value.getAddress() + ", Value: "
-                                                + value.getValue()));
+                                                + Amount.format(value.getValue())));
                         Platform.runLater(() -> {
-                            double balance = userWallet.getBalance(utxoPool, walletServer, port);
-                            userBalance.setText(String.valueOf(balance));
+                            long balance = userWallet.getBalance(utxoPool, walletServer, port);
+                            userBalance.setText(Amount.format(balance));
                         });
                         long timestamp = genesisBlock.getTimeStamp();
                         SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
@@ -370,8 +661,23 @@ public class Node {
                         peerManager.broadcast(updateBlockchain);
                     }
 
-                    String previousHash = blockchain.getChain().get((blockchain.getChain().size() - 1)).getBlockHash();
-                    Mining mining = new Mining(previousHash, minerAddress, utxoPool, minerReward);
+                    Hash256 previousHash = blockchain.getChain().get((blockchain.getChain().size() - 1)).getBlockHash();
+                    // mining works on the header text, which carries the previous hash in hex
+                    Mining mining = new Mining(previousHash.toString(), minerAddress, utxoPool, minerReward);
+                    mining.setParallelMiner(parallelMiner);
+                    mining.setHashingEngine(hashingEngine);
+                    mining.setMiningStats(miningStats);
+                    mining.setCpuBudget(cpuBudget);
+                    if (workServer != null) {
+                        mining.setTemplateListener(workServer::publish);
+                    }
+                    mining.setDifficultyBits(Difficulty.nextBits(blockchain));
+                    MiningJob job = new MiningJob(previousHash.toString());
+                    mining.setJob(job);
+                    currentMiningJob = job;
+                    if (!isTip(previousHash)) {
+                        continue; // the tip moved while the template was being set up
+                    }
                     if (blockchain.getChain().size() % 1000 == 0) {
                         halveMinerReward();
                     }
@@ -379,11 +685,17 @@ public class Node {
                     ArrayList<Transaction> mempoolTransactions = mining.getBlockTransactionsToBeHashed(mempool);
                     if (!mempoolTransactions.isEmpty() && mempoolTransactions.size() >= mining.getNumOfTransactions()) {
                         System.out.println("Mempool transactions fetched: " + mempoolTransactions);
+                        // on the chain already unless null
                         Block minedBlock = mining.mineBlock(mempoolTransactions, this);
+                        if (minedBlock == null) {
+                            // lost the race; hand the transactions back for the next template
+                            System.out.println("Mining job on stale tip " + previousHash + " abandoned.");
+                            for (Transaction transaction : mempoolTransactions) {
+                                mempool.addTransactionToMempool(transaction);
+                            }
+                            continue;
+                        }
                         if (minedBlock != null) {
-                            blockchain.addBlock(minedBlock);
-                            minedBlock.setBlockNumber(blockchain.getBlockHeight());
-
                             System.out.println(
                                     "Block (with not just reward transaction): " + minedBlock.getBlockNumber()
                                             + " Hash: " + minedBlock.getBlockHash());
@@ -392,10 +704,10 @@ public class Node {
                                             .println("UTXO Pool after block " + blockchain.getBlockHeight()
                                                     + ": Address: "
                                                     + value.getAddress() + ", Value: "
-                                                    + value.getValue()));
+                                                    + Amount.format(value.getValue())));
                             Platform.runLater(() -> {
-                                double balance = userWallet.getBalance(utxoPool, walletServer, port);
-                                userBalance.setText(String.valueOf(balance));
+                                long balance = userWallet.getBalance(utxoPool, walletServer, port);
+                                userBalance.setText(Amount.format(balance));
                             });
                             System.out.println("Mempool after block : " + blockchain.getBlockHeight() + ": "
                                     + mempool.getTransactions());
@@ -420,13 +732,10 @@ public class Node {
                     } else if (mempoolTransactions.size() < mining.getNumOfTransactions()) {
                         ArrayList<Transaction> rewardsList = new ArrayList<Transaction>();
                         Block rewardBlock = mining.mineBlock(rewardsList, this);
-                        this.utxoPool = mining.getUTXOPool();
-                        blockchain.addBlock(rewardBlock);
-                        processedBlocks.add(rewardBlock.getBlockHash());
-                        for (Transaction transaction : rewardBlock.getBlockTransactions()) {
-                            processedTransactions.add(transaction.getHash());
+                        if (rewardBlock == null) {
+                            System.out.println("Mining job on stale tip " + previousHash + " abandoned.");
+                            continue;
                         }
-                        rewardBlock.setBlockNumber(this.getBlockchain().getBlockHeight());
                         peerManager.broadcast(rewardBlock);
                         System.out.println(
                                 "Block: " + blockchain.getBlockHeight() + " Hash: " + rewardBlock.getBlockHash());
@@ -435,10 +744,10 @@ public class Node {
                                 (key, value) -> System.out
                                         .println("UTXO Pool after block " + blockchain.getBlockHeight() + ": Address: "
                                                 + value.getAddress() + ", Value: "
-                                                + value.getValue()));
+                                                + Amount.format(value.getValue())));
                         Platform.runLater(() -> {
-                            double balance = userWallet.getBalance(utxoPool, walletServer, port);
-                            userBalance.setText(String.valueOf(balance));
+                            long balance = userWallet.getBalance(utxoPool, walletServer, port);
+                            userBalance.setText(Amount.format(balance));
                         });
                         long timestamp = rewardBlock.getTimeStamp();
 
@@ -466,7 +775,93 @@ public class Node {
         });
     }
 
-    public double getMinerReward() {
+    // Proof that the transaction is in the block with the given hash, or null if
+    // this node does not have that block or the transaction is not in it.
+    public MerkleProof getMerkleProof(Hash256 blockHash, Hash256 transactionId) {
+        Block block = findBlock(blockHash);
+        if (block == null) {
+            return null;
+        }
+        ArrayList<Transaction> transactions = block.getBlockTransactions();
+        for (int j = 0; j < transactions.size(); j++) {
+            if (transactions.get(j).getHash().equals(transactionId)) {
+                return merkleTreeCache.get(block).proof(j);
+            }
+        }
+        return null;
+    }
+
+    // Asks peers to prove that the transaction is in the block with the given
+    // hash, a block on this node's chain. Completes with the first proof that
+    // checks out against the block's merkle root, or exceptionally with a
+    // TimeoutException if none arrives within -Dmerkle.proofTimeout (default 30)
+    // seconds.
+    public CompletableFuture<MerkleProof> requestMerkleProof(Hash256 blockHash, Hash256 transactionId) {
+        MerkleProofRequest request = new MerkleProofRequest(blockHash, transactionId);
+        CompletableFuture<MerkleProof> proof = pendingProofs.computeIfAbsent(request, pending -> {
+            CompletableFuture<MerkleProof> answer = new CompletableFuture<>();
+            answer.orTimeout(Long.getLong("merkle.proofTimeout", 30L), TimeUnit.SECONDS)
+                    .whenComplete((proven, e) -> pendingProofs.remove(pending, answer));
+            return answer;
+        });
+        if (peerManager != null) {
+            peerManager.broadcast(request);
+        }
+        return proof;
+    }
+
+    // A peer's answer to requestMerkleProof. Returns whether its proof checks
+    // out; one that does completes the request.
+    public boolean acceptMerkleProof(MerkleProofResponse response) {
+        MerkleProof proof = response.getProof();
+        Block block = findBlock(response.getBlockHash());
+        if (proof == null || block == null || !proof.verify(response.getTransactionId(), block.getMerkleRoot())) {
+            return false;
+        }
+        CompletableFuture<MerkleProof> pending = pendingProofs
+                .remove(new MerkleProofRequest(response.getBlockHash(), response.getTransactionId()));
+        if (pending != null) {
+            pending.complete(proof);
+        }
+        return true;
+    }
+
+    // the block with the given hash on this node's chain, or null
+    private Block findBlock(Hash256 blockHash) {
+        ArrayList<Block> chain = blockchain.getChain();
+        for (int i = chain.size() - 1; i >= 0; i--) {
+            if (chain.get(i).getBlockHash().equals(blockHash)) {
+                return chain.get(i);
+            }
+        }
+        return null;
+    }
+
+    public WorkServer getWorkServer() {
+        return this.workServer;
+    }
+
+    public SignatureCache getSignatureCache() {
+        return this.signatureCache;
+    }
+
+    public SignatureVerifier getSignatureVerifier() {
+        return this.signatureVerifier;
+    }
+
+    public CpuBudget getCpuBudget() {
+        return this.cpuBudget;
+    }
+
+    public MiningStats getMiningStats() {
+        return this.miningStats;
+    }
+
+    public ParallelMiner getParallelMiner() {
+        return this.parallelMiner;
+    }
+
+    public long getMinerReward() {
         return this.minerReward;
     }
 
@@ -510,7 +905,7 @@ public class Node {
         return this.userWallets;
     }
 
-    public void performTransaction(String recipientAddress, double amount, boolean useNewAddress, boolean highPriority)
+    public void performTransaction(String recipientAddress, long amount, boolean useNewAddress, boolean highPriority)
             throws NoSuchAlgorithmException {
         Random random = new Random();
         if (useNewAddress == true) {
@@ -557,40 +952,74 @@ public class Node {
         } else {
             walletServer = new WalletServer();
         }
-        if (utxoFile.exists()) {
+        if (isUTXOStoreMapped()) {
+            // the UTXO set stays in its memory-mapped file and is simply mapped again
+            try {
+                File storeFile = new File(System.getProperty("utxo.file", "utxoPool.dat"));
+                utxoPool = new UTXOPool(new MappedUTXOStore(storeFile));
+            } catch (IOException e) {
+                e.printStackTrace();
+                utxoPool = new UTXOPool();
+            }
+        } else if (utxoFile.exists()) {
             utxoPool = new UTXOPool(FileSaver.loadHashMap("utxoPool.ser"));
         } else {
             utxoPool = new UTXOPool();
         }
     }
 
+    // -Dutxo.store=mapped keeps the UTXO set off the heap, in the file -Dutxo.file
+    private static boolean isUTXOStoreMapped() {
+        return "mapped".equals(System.getProperty("utxo.store"));
+    }
+
+    private void saveUTXOPool() {
+        if (utxoPool.getStore() instanceof MappedUTXOStore) {
+            utxoPool.flush();
+        } else {
+            FileSaver.saveHashMap(utxoPool.getUTXOMap(), "utxoPool.ser");
+        }
+    }
+
+    // flushes a mapped store, with its tip, and unmaps it
+    private void closeUTXOStore() {
+        if (utxoPool.getStore() instanceof MappedUTXOStore) {
+            try {
+                ((MappedUTXOStore) utxoPool.getStore()).close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
     public void saveMappingsOnShutdown() {
         File file = new File("blockchain.ser");
         if (file.exists()) {
 
             Blockchain loadBlockchain = FileSaver.loadBlockchain("blockchain.ser");
-            if (loadBlockchain != null) {
-                if (loadBlockchain.getBlockHeight() < blockchain.getBlockHeight()) {
+            // a file that cannot be read, e.g. one in an older format, is replaced
+            if (loadBlockchain == null || loadBlockchain.getBlockHeight() < blockchain.getBlockHeight()) {
 
-                    FileSaver.saveHashMap(walletServer.getHashMap(), "walletServer.ser");
-                    FileSaver.saveHashMap(utxoPool.getUTXOMap(), "utxoPool.ser");
-                    FileSaver.saveBlockchain(blockchain, "blockchain.ser");
+                FileSaver.saveHashMap(walletServer.getHashMap(), "walletServer.ser");
+                saveUTXOPool();
+                FileSaver.saveBlockchain(blockchain, "blockchain.ser");
 
-                    UpdateBlockchain updateBlockchain = new UpdateBlockchain(blockchain);
-                    System.out.println("Broadcasting changes before shutting down.");
-                    peerManager.broadcast(updateBlockchain);
-                }
+                UpdateBlockchain updateBlockchain = new UpdateBlockchain(blockchain);
+                System.out.println("Broadcasting changes before shutting down.");
+                peerManager.broadcast(updateBlockchain);
             }
         } else {
             FileSaver.saveHashMap(walletServer.getHashMap(), "walletServer.ser");
-            FileSaver.saveHashMap(utxoPool.getUTXOMap(), "utxoPool.ser");
+            saveUTXOPool();
             FileSaver.saveBlockchain(blockchain, "blockchain.ser");
 
         }
+        closeUTXOStore();
     }
 
+    // Takes over the UTXOs of UTXOPool. The node keeps its own pool, so its store
+    // (and a mapped file behind it) stays in place.
     public void setUTXOPool(UTXOPool UTXOPool) {
-        this.utxoPool.emptyUTXOPool();
-        this.utxoPool = UTXOPool;
+        this.utxoPool.replaceWith(UTXOPool);
     }
 }
\ No newline at end of file
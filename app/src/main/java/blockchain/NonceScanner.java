@@ -0,0 +1,9 @@
+package blockchain;
+
+// Scans nonces for one block header. Instances hold per-thread buffers, so each
+// mining thread creates its own through HashingEngine.newScanner.
+public interface NonceScanner {
+    // Returns the lowest nonce in [fromNonce, toNonce) whose header hash meets the
+    // target, or -1 if there is none. Both bounds lie within 0..2^31.
+    long scan(long fromNonce, long toNonce);
+}
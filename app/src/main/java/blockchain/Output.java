@@ -1,30 +1,45 @@
 package blockchain;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
 public class Output implements Serializable {
-    private static final long serialVersionUID = 2317709595944805708L;
+    private static final long serialVersionUID = 2317709595944805709L;
 
-    private double outputValue;
-    private String OutputString;
-    private String address;
+    private long outputValue; // in base units (Amount.COIN to a coin)
+    private transient AddressTable.Entry address; // the receiving address
 
-    public Output(double value, String receiveraddress) {
+    public Output(long value, String receiveraddress) {
         this.outputValue = value;
-        this.address = receiveraddress;
+        this.address = AddressTable.intern(receiveraddress);
     }
 
     public String getAddress() {
+        return address.getAddress();
+    }
+
+    public int getAddressId() {
+        return this.address.getId();
+    }
+
+    public AddressTable.Entry getAddressEntry() {
         return this.address;
     }
 
-    public double getValue() {
+    public long getValue() {
         return this.outputValue;
     }
 
-    public String getOutputDataAsString() {
-        OutputString = Double.toString(outputValue);
-        return OutputString;
+    // address ids are local to this process, so the address itself is written
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeUTF(getAddress());
     }
 
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        this.address = AddressTable.intern(in.readUTF());
+    }
 }
@@ -0,0 +1,163 @@
+package blockchain;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ParallelMiner {
+    // number of nonces a worker claims at a time; small enough that workers notice a
+    // solution or a cancelled job quickly, large enough that the shared counter is
+    // not contended
+    private static final int CHUNK_SIZE = Mining.CANCEL_CHECK_INTERVAL;
+
+    private final int workerCount;
+    private final ExecutorService workers;
+
+    public ParallelMiner(int workerCount) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("Worker count must be at least 1");
+        }
+        this.workerCount = workerCount;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workerCount, runnable -> {
+            Thread thread = new Thread(runnable, "mining-worker-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public int getWorkerCount() {
+        return this.workerCount;
+    }
+
+    // Searches the nonces from startNonce upwards for a hash meeting the miner's
+    // target. The nonce space is handed out in non-overlapping chunks; once a
+    // worker finds a solution, every chunk above it is abandoned while chunks below
+    // it are finished, so the result is the lowest valid nonce - the same one the
+    // sequential loop in Mining would return. Workers check the miner's job between
+    // chunks and give up once it is cancelled, in which case null is returned.
+    public Solution search(Mining miner, String previousHash, long timestamp, String merkleRoot, int startNonce) {
+        AtomicLong nextChunk = new AtomicLong(startNonce);
+        AtomicLong bestNonce = new AtomicLong(Long.MAX_VALUE);
+        byte[] prefix = Block.headerPrefix(previousHash, timestamp, merkleRoot, miner.getDifficultyBits());
+        int[] targetWords = Difficulty.toTargetWords(miner.getDifficultyBits());
+        MiningJob job = miner.getJob();
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < workerCount; i++) {
+            int worker = i;
+            tasks.add(() -> {
+                NonceScanner scanner = miner.getHashingEngine().newScanner(prefix, targetWords);
+                searchChunks(miner, scanner, job, worker, nextChunk, bestNonce);
+                return null;
+            });
+        }
+
+        try {
+            workers.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+
+        long nonce = bestNonce.get();
+        if (nonce == Long.MAX_VALUE) {
+            return null; // cancelled, or nonce space exhausted without a solution
+        }
+        HeaderHasher hasher = new HeaderHasher(prefix);
+        hasher.hash((int) nonce);
+        return new Solution((int) nonce, hasher.hexDigest());
+    }
+
+    // Searches a whole block template. Worker w takes the extra-nonces
+    // w, w + workerCount, w + 2 * workerCount, ... so every worker hashes headers
+    // of its own and none of them has to coordinate over nonce chunks; the first
+    // solution found wins. Returns null once the miner's job is cancelled.
+    public Solution searchTemplate(Mining miner, HeaderTemplate template, long timestamp) {
+        return searchTemplate(miner, template, timestamp, new AtomicReference<>());
+    }
+
+    // As above, but also stops once a solution found elsewhere is put into winner.
+    public Solution searchTemplate(Mining miner, HeaderTemplate template, long timestamp,
+            AtomicReference<Solution> winner) {
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < workerCount; i++) {
+            int worker = i;
+            tasks.add(() -> {
+                miner.searchTemplate(template, worker, timestamp, worker, workerCount, winner);
+                return null;
+            });
+        }
+
+        try {
+            workers.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        return winner.get();
+    }
+
+    private void searchChunks(Mining miner, NonceScanner scanner, MiningJob job, int worker,
+            AtomicLong nextChunk, AtomicLong bestNonce) {
+        while (job == null || !job.isCancelled()) {
+            long chunkStart = nextChunk.getAndAdd(CHUNK_SIZE);
+            if (chunkStart > Integer.MAX_VALUE || chunkStart > bestNonce.get()) {
+                return;
+            }
+            long chunkEnd = Math.min(chunkStart + CHUNK_SIZE, (long) Integer.MAX_VALUE + 1);
+            long chunkStarted = System.nanoTime();
+            long found = scanner.scan(chunkStart, chunkEnd);
+            miner.afterChunk(worker, (found >= 0 ? found + 1 : chunkEnd) - chunkStart,
+                    System.nanoTime() - chunkStarted);
+            if (found >= 0) {
+                bestNonce.accumulateAndGet(found, Math::min);
+                return;
+            }
+        }
+    }
+
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+
+    public static class Solution {
+        private final int nonce;
+        private final String blockHash;
+        private final long timestamp;
+        private final long extraNonce;
+
+        public Solution(int nonce, String blockHash) {
+            this(nonce, blockHash, 0, 0);
+        }
+
+        public Solution(int nonce, String blockHash, long timestamp, long extraNonce) {
+            this.nonce = nonce;
+            this.blockHash = blockHash;
+            this.timestamp = timestamp;
+            this.extraNonce = extraNonce;
+        }
+
+        public int getNonce() {
+            return this.nonce;
+        }
+
+        public String getBlockHash() {
+            return this.blockHash;
+        }
+
+        // header timestamp and extra-nonce the nonce belongs to; only set for template searches
+        public long getTimestamp() {
+            return this.timestamp;
+        }
+
+        public long getExtraNonce() {
+            return this.extraNonce;
+        }
+    }
+}
@@ -8,8 +8,6 @@ import java.io.ObjectOutputStream;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.security.PublicKey;
-import java.util.ArrayList;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
@@ -194,66 +192,68 @@ public class PeerManager implements Runnable {
     private void processReceivedObject(ObjectOutputStream out, Object receivedObject)
             throws IOException, InvalidBlockchainException {
         try {
-            node.setShouldInterrupt(true);
+            // validated on this connection's thread, so a peer cannot send faster
+            // than it is checked; the node's CpuBudget holds mining back meanwhile
             if (receivedObject instanceof Transaction) {
-                processTransaction((Transaction) receivedObject);
+                node.getCpuBudget().validate(() -> processTransaction((Transaction) receivedObject));
             } else if (receivedObject instanceof Block) {
-                processBlock((Block) receivedObject);
+                node.getCpuBudget().validate(() -> processBlock((Block) receivedObject));
             } else if (receivedObject instanceof BlockchainRequest) {
                 respondWithBlockchainMapping(out);
+            } else if (receivedObject instanceof MerkleProofRequest) {
+                respondWithMerkleProof((MerkleProofRequest) receivedObject, out);
+            } else if (receivedObject instanceof MerkleProofResponse) {
+                if (!node.acceptMerkleProof((MerkleProofResponse) receivedObject)) {
+                    System.out.println("Merkle proof from peer does not check out; ignoring it.");
+                }
             } else if (receivedObject instanceof UpdateBlockchain) {
                 UpdateBlockchain updateBlockchain = (UpdateBlockchain) receivedObject;
-                processBlockchain(updateBlockchain.blockchain, out);
+                node.getCpuBudget().validate(() -> {
+                    try {
+                        processBlockchain(updateBlockchain.blockchain, out);
+                    } catch (Exception e) {
+                        System.out.println("Rejected blockchain from peer: " + e.getMessage());
+                    }
+                });
             }
 
         } catch (
 
         Exception e) {
-        } finally {
-            node.setShouldInterrupt(false);
         }
 
     }
 
     private void processTransaction(Transaction transaction) {
-        String transactionHash = transaction.getHash();
+        Hash256 transactionHash = transaction.getHash();
         boolean validTransaction = true;
 
         if (!node.getProcessedTransactions().contains(transactionHash) && node.validateTransaction(transaction)) {
-            if (node.validateTransaction(transaction)) {
-                for (Input input : transaction.getInputs()) {
-                    UTXOKey utxoKeyToCheck = new UTXOKey(input.getTxId(), input.getOutputIndex());
-                    if (node.getUTXOPool().getUTXO(utxoKeyToCheck) == null) {
-                        System.out.println("Invalid transaction received; block invalid.");
-                        validTransaction = false;
-                    }
-                }
-                if (validTransaction) {
-                    System.out.println("Received Valid Transaction: " + transactionHash);
-                    node.addProcessedTransactions(transaction.getHash());
-                    broadcast(transaction);
+            for (Input input : transaction.getInputs()) {
+                UTXOKey utxoKeyToCheck = new UTXOKey(input.getTxId(), input.getOutputIndex());
+                if (node.getUTXOPool().getUTXO(utxoKeyToCheck) == null) {
+                    System.out.println("Invalid transaction received; block invalid.");
+                    validTransaction = false;
                 }
             }
+            if (validTransaction) {
+                System.out.println("Received Valid Transaction: " + transactionHash);
+                node.addProcessedTransactions(transaction.getHash());
+                broadcast(transaction);
+            }
         }
     }
 
     private void processBlock(Block block) {
-        boolean validBlock = false;
-        String blockHash = block.getBlockHash();
+        Hash256 blockHash = block.getBlockHash();
+        // validateBlock connects the block only if it extends the tip
         if (!node.getProcessedBlocks().contains(blockHash) && node.validateBlock(block)) {
-            int blockHeight = node.getBlockchain().getBlockHeight();
-            if (blockHeight + 1 == block.getBlockNumber()) {
-                System.out.println("Received Valid Block: " + blockHash);
-                (node.getBlockchain()).addBlock(block);
-                validBlock = true;
-            }
+            System.out.println("Received Valid Block: " + blockHash);
+            node.cancelStaleMiningJob();
             for (Transaction tx : block.getBlockTransactions()) {
                 (node.getMempool()).removeTransactionFromMempool(tx);
             }
-            node.addProcessedBlocks(blockHash);
-            if (validBlock) {
-                broadcast(block);
-            }
+            broadcast(block);
         }
     }
 
@@ -264,103 +264,28 @@ public class PeerManager implements Runnable {
 
     }
 
+    private void respondWithMerkleProof(MerkleProofRequest request, ObjectOutputStream out) throws IOException {
+        MerkleProof proof = node.getMerkleProof(request.getBlockHash(), request.getTransactionId());
+        out.writeObject(new MerkleProofResponse(request.getBlockHash(), request.getTransactionId(), proof));
+        out.flush();
+    }
+
     private void processBlockchain(Blockchain receivedBlockchain, ObjectOutputStream out)
             throws InvalidBlockchainException, IOException {
-        if (receivedBlockchain.getChain().size() > node.getBlockchain().getChain().size()) {
-            System.out.println("Found longer blockchain " + receivedBlockchain);
-
-            Blockchain currentBlockchain = node.getBlockchain();
-            UTXOPool currentUTXOPool = node.getUTXOPool();
-
-            node.getBlockchain().replaceChain(currentBlockchain);
-            node.getUTXOPool().emptyUTXOPool();
-            for (int j = 0; j < node.getBlockchain().getChain().size(); j++) {
-                Block block = node.getBlockchain().getChain().get(j);
-                if (j == 0) { // genesis block doesn't have a signature
-                    for (Transaction transaction : block.getBlockTransactions()) {
-                        ArrayList<Output> outputs = transaction.getOutputs();
-                        for (int i = 0; i < outputs.size(); i++) {
-                            String transactionHash = transaction.getHash();
-                            Output output = outputs.get(i);
-                            UTXOKey utxoKey = new UTXOKey(transactionHash, i); // Use the transaction hash and output
-                                                                               // index
-                                                                               // as the
-                                                                               // key
-                            UTXO utxo = new UTXO(output.getValue(), output.getAddress());
-                            node.getUTXOPool().addUTXO(utxoKey, utxo); // Add the new UTXO to the pool
-                        }
-                    }
-                    continue;
-                }
-                for (Transaction transaction : block.getBlockTransactions()) {
-                    if (transaction.getInputs().get(0).getTxId().startsWith("reward")) {
-                        ArrayList<Output> outputs = transaction.getOutputs();
-                        for (int i = 0; i < outputs.size(); i++) {
-                            String transactionHash = transaction.getHash();
-                            Output output = outputs.get(i);
-                            UTXOKey utxoKey = new UTXOKey(transactionHash, i); // Use the transaction hash and
-                                                                               // output
-                                                                               // index
-                                                                               // as the
-                                                                               // key
-                            UTXO utxo = new UTXO(output.getValue(), output.getAddress());
-                            node.getUTXOPool().addUTXO(utxoKey, utxo); // Add the new UTXO to the pool
-                        }
-                    } else {
-                        ArrayList<Output> outputs = transaction.getOutputs();
-                        ArrayList<Input> inputs = transaction.getInputs();
-                        boolean validTransaction = false;
-                        for (Input input : inputs) {
-                            PublicKey senderPublicKey = input.getPublicKey();
-                            validTransaction = input.verifySignature(senderPublicKey,
-                                    transaction.getTransactionString());
-                            if (!validTransaction) {
-                                break;
-                            }
-                        }
-                        if (validTransaction) {
-                            String transactionHash = transaction.getHash();
-
-                            for (Input input : inputs) {
-                                String txHash = input.getTxId();
-                                int index = input.getOutputIndex();
-                                UTXOKey keyToRemove = new UTXOKey(txHash, index);
-                                if (node.getUTXOPool().containsUTXOKey(keyToRemove)) {
-                                    node.getUTXOPool().removeFromUTXOPool(keyToRemove);
-                                } else {
-                                    node.getBlockchain().replaceChain(currentBlockchain);
-                                    node.setUTXOPool(currentUTXOPool);
-                                    // stop checking and make a new blockchain
-                                    throw new InvalidBlockchainException(
-                                            "Invalid block received.: UTXO not found in pool. Reverting to original blockchain.");
-                                }
-                            }
-
-                            for (int i = 0; i < outputs.size(); i++) {
-                                Output output = outputs.get(i);
-                                UTXOKey utxoKey = new UTXOKey(transactionHash, i); // Use the transaction hash and
-                                                                                   // output
-                                                                                   // index
-                                                                                   // as the
-                                                                                   // key
-                                UTXO utxo = new UTXO(output.getValue(), output.getAddress());
-                                node.getUTXOPool().addUTXO(utxoKey, utxo); // Add the new UTXO to the pool
-                            }
-
-                        } else {
-                            node.getBlockchain().replaceChain(currentBlockchain);
-                            node.setUTXOPool(currentUTXOPool);
-                            throw new InvalidBlockchainException(
-                                    "Invalid block received: Invalid Transaction Signature. Reverting back to original blockchain.");
-                        }
-                    }
-
-                }
-            }
+        // the chain with the most work wins, not the one with the most blocks
+        int comparison = Difficulty.chainWork(receivedBlockchain.getChain())
+                .compareTo(Difficulty.chainWork(node.getBlockchain().getChain()));
+        if (comparison > 0) {
+            System.out.println("Found blockchain with more work " + receivedBlockchain);
+
+            // only the blocks above the fork are undone and connected; an invalid one
+            // leaves the current chain and UTXO pool as they were
+            node.adoptChain(receivedBlockchain);
+            node.cancelStaleMiningJob();
             System.out.println("Blockchain fetched from peer.");
 
-        } else if (receivedBlockchain.getChain().size() > node.getBlockchain().getChain().size()) {
-            System.out.println("Current chain is longer- sending current chain...");
+        } else if (comparison < 0) {
+            System.out.println("Current chain has more work- sending current chain...");
             out.reset();
             respondWithBlockchainMapping(out);
         }
@@ -0,0 +1,103 @@
+package blockchain;
+
+import java.nio.ByteBuffer;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.Security;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECParameterSpec;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.bouncycastle.jce.ECNamedCurveTable;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.jce.spec.ECNamedCurveParameterSpec;
+import org.bouncycastle.jce.spec.ECPublicKeySpec;
+import org.bouncycastle.math.ec.ECPoint;
+
+// Every secp256k1 wallet key seen, by its 33-byte compressed encoding (0x02 or
+// 0x03 for the parity of y, then x). Decoding a transaction looks keys up here,
+// so all inputs and transactions signed by one wallet share a single PublicKey
+// object and a key is only decoded from its point the first time it is seen.
+// Peers can send any number of keys, so only the -Dkeys.cacheSize (default
+// 4096) most recently used are kept; an evicted key is simply decoded again.
+public class PublicKeyTable {
+    public static final int COMPRESSED_SIZE = 33;
+    public static final int CAPACITY = Integer.getInteger("keys.cacheSize", 4096);
+
+    private static final ECNamedCurveParameterSpec SECP256K1 = ECNamedCurveTable.getParameterSpec("secp256k1");
+    private static final Map<ByteBuffer, PublicKey> KEYS = new LinkedHashMap<ByteBuffer, PublicKey>(16, 0.75f,
+            true) {
+        private static final long serialVersionUID = 2317709595944805708L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, PublicKey> eldest) {
+            return size() > CAPACITY;
+        }
+    };
+
+    static {
+        Security.addProvider(new BouncyCastleProvider());
+    }
+
+    private PublicKeyTable() {
+    }
+
+    // the compressed encoding, or null if key is not a secp256k1 key
+    public static byte[] compress(PublicKey key) {
+        if (!(key instanceof ECPublicKey)) {
+            return null;
+        }
+        ECPublicKey ecKey = (ECPublicKey) key;
+        ECParameterSpec params = ecKey.getParams();
+        if (!params.getOrder().equals(SECP256K1.getN())
+                || !params.getGenerator().getAffineX().equals(SECP256K1.getG().getAffineXCoord().toBigInteger())) {
+            return null;
+        }
+        byte[] compressed = new byte[COMPRESSED_SIZE];
+        compressed[0] = (byte) (ecKey.getW().getAffineY().testBit(0) ? 0x03 : 0x02);
+        byte[] x = ecKey.getW().getAffineX().toByteArray(); // big-endian, maybe with a sign byte or shorter
+        int length = Math.min(x.length, COMPRESSED_SIZE - 1);
+        System.arraycopy(x, x.length - length, compressed, COMPRESSED_SIZE - length, length);
+        return compressed;
+    }
+
+    // The table's instance of key, which becomes the shared one if it is the first.
+    public static PublicKey intern(PublicKey key) {
+        byte[] compressed = compress(key);
+        if (compressed == null) {
+            return key;
+        }
+        return internCompressed(compressed, key);
+    }
+
+    private static synchronized PublicKey internCompressed(byte[] compressed, PublicKey key) {
+        PublicKey existing = KEYS.putIfAbsent(ByteBuffer.wrap(compressed), key);
+        return existing == null ? key : existing;
+    }
+
+    private static synchronized PublicKey lookup(byte[] compressed) {
+        return KEYS.get(ByteBuffer.wrap(compressed));
+    }
+
+    public static PublicKey decompress(byte[] compressed) {
+        if (compressed.length != COMPRESSED_SIZE) {
+            throw new IllegalArgumentException("A compressed key is " + COMPRESSED_SIZE + " bytes");
+        }
+        PublicKey key = lookup(compressed);
+        if (key != null) {
+            return key;
+        }
+        try {
+            ECPoint point = SECP256K1.getCurve().decodePoint(compressed);
+            key = KeyFactory.getInstance("EC", "BC").generatePublic(new ECPublicKeySpec(point, SECP256K1));
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Not a secp256k1 public key", e);
+        }
+        return internCompressed(compressed.clone(), key);
+    }
+
+    public static synchronized int size() {
+        return KEYS.size();
+    }
+}
@@ -0,0 +1,144 @@
+package blockchain;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+
+// A standalone miner that hashes work units handed out by a node's WorkServer,
+// so hashing can be spread over processes that do not run a node of their own:
+//
+//   java --add-modules jdk.incubator.vector -cp <classpath> blockchain.RemoteMiner <host> <port>
+//
+// Every mining thread (-Dmining.threads, default one per core) holds its own
+// connection and work unit. -Dmining.engine picks the hashing engine as for Node.
+public class RemoteMiner implements Runnable {
+    private final String host;
+    private final int port;
+    private final String name;
+    private final HashingEngine hashingEngine;
+    private final Object workLock = new Object();
+    private volatile WorkTemplate work; // newest work unit; the node replaces it whenever its tip moves
+    private volatile boolean disconnected = false;
+    private ObjectOutputStream out;
+
+    public RemoteMiner(String host, int port, String name, HashingEngine hashingEngine) {
+        this.host = host;
+        this.port = port;
+        this.name = name;
+        this.hashingEngine = hashingEngine;
+    }
+
+    @Override
+    public void run() {
+        try (Socket socket = new Socket(host, port)) {
+            out = new ObjectOutputStream(socket.getOutputStream());
+            out.flush();
+            ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+            Thread reader = new Thread(() -> readMessages(in), name + "-reader");
+            reader.setDaemon(true);
+            reader.start();
+
+            send(new WorkRequest(name));
+            WorkTemplate unit = null;
+            while ((unit = awaitWork(unit)) != null) {
+                hashWorkUnit(unit);
+                if (work == unit) {
+                    send(new WorkRequest(name)); // nonce space exhausted, not replaced
+                }
+            }
+        } catch (IOException e) {
+            System.err.println(name + ": connection to " + host + ":" + port + " failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Blocks until the node sends a unit other than previous; null once disconnected.
+    private WorkTemplate awaitWork(WorkTemplate previous) throws InterruptedException {
+        synchronized (workLock) {
+            while (work == previous && !disconnected) {
+                workLock.wait();
+            }
+            return disconnected ? null : work;
+        }
+    }
+
+    // Hashes the unit's nonces until they run out or the node sends newer work,
+    // submitting every nonce that meets the share target.
+    private void hashWorkUnit(WorkTemplate unit) throws IOException {
+        NonceScanner scanner = hashingEngine.newScanner(unit.getHeaderPrefix(),
+                Difficulty.toTargetWords(unit.getShareBits()));
+        long from = 0;
+        while (from <= Integer.MAX_VALUE && work == unit && !disconnected) {
+            long to = Math.min(from + Mining.CANCEL_CHECK_INTERVAL, (long) Integer.MAX_VALUE + 1);
+            long found = scanner.scan(from, to);
+            if (found >= 0) {
+                send(new WorkSubmission(unit.getJobId(), (int) found));
+                from = found + 1;
+            } else {
+                from = to;
+            }
+        }
+    }
+
+    private void readMessages(ObjectInputStream in) {
+        try {
+            while (true) {
+                Object received = in.readObject();
+                if (received instanceof WorkTemplate) {
+                    synchronized (workLock) {
+                        work = (WorkTemplate) received;
+                        workLock.notifyAll();
+                    }
+                } else if (received instanceof WorkResult) {
+                    WorkResult result = (WorkResult) received;
+                    if (result.isBlockFound() || !result.isAccepted()) {
+                        System.out.println(name + ": job " + result.getJobId() + " nonce " + result.getNonce()
+                                + ": " + result.getMessage());
+                    }
+                }
+            }
+        } catch (EOFException e) {
+            System.out.println(name + ": node closed the connection.");
+        } catch (IOException | ClassNotFoundException e) {
+            System.err.println(name + ": error reading from node: " + e.getMessage());
+        } finally {
+            synchronized (workLock) {
+                disconnected = true;
+                workLock.notifyAll();
+            }
+        }
+    }
+
+    private void send(Object message) throws IOException {
+        synchronized (out) {
+            out.writeObject(message);
+            out.flush();
+            out.reset();
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 2) {
+            System.err.println("Usage: RemoteMiner <host> <port>");
+            System.exit(1);
+        }
+        String host = args[0];
+        int port = Integer.parseInt(args[1]);
+        int threads = Integer.getInteger("mining.threads", Runtime.getRuntime().availableProcessors());
+        HashingEngine hashingEngine = HashingEngine.configured();
+        String baseName = "miner-" + ProcessHandle.current().pid();
+
+        Thread[] miners = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            String name = baseName + "-" + (i + 1);
+            miners[i] = new Thread(new RemoteMiner(host, port, name, hashingEngine), name);
+            miners[i].start();
+        }
+        for (Thread miner : miners) {
+            miner.join();
+        }
+    }
+}
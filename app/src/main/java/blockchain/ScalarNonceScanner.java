@@ -0,0 +1,21 @@
+package blockchain;
+
+public class ScalarNonceScanner implements NonceScanner {
+    private final HeaderHasher hasher;
+    private final int[] targetWords;
+
+    public ScalarNonceScanner(byte[] headerPrefix, int[] targetWords) {
+        this.hasher = new HeaderHasher(headerPrefix);
+        this.targetWords = targetWords;
+    }
+
+    @Override
+    public long scan(long fromNonce, long toNonce) {
+        for (long nonce = fromNonce; nonce < toNonce; nonce++) {
+            if (hasher.hashMeetsTarget((int) nonce, targetWords)) {
+                return nonce;
+            }
+        }
+        return -1;
+    }
+}
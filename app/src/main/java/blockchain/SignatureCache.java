@@ -0,0 +1,79 @@
+package blockchain;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Input signatures that already verified, so a transaction checked when it
+// entered the mempool is not checked again when it arrives inside a block.
+// An entry is keyed by (txid, input index, SHA-256 of the signature): the txid
+// commits to the signing bytes and the public key, so the same key can only
+// stand for the same verification. Once more than capacity entries are held
+// the oldest are dropped first.
+public class SignatureCache {
+    private final int capacity;
+    private final Map<Key, Boolean> verified = new ConcurrentHashMap<>();
+    private final Queue<Key> insertionOrder = new ConcurrentLinkedQueue<>();
+
+    public SignatureCache(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+        this.capacity = capacity;
+    }
+
+    public boolean contains(Hash256 txId, int inputIndex, byte[] signature) {
+        return signature != null && verified.containsKey(new Key(txId, inputIndex, signature));
+    }
+
+    public void add(Hash256 txId, int inputIndex, byte[] signature) {
+        Key key = new Key(txId, inputIndex, signature);
+        if (verified.putIfAbsent(key, Boolean.TRUE) == null) {
+            insertionOrder.add(key);
+            while (verified.size() > capacity) {
+                Key eldest = insertionOrder.poll();
+                if (eldest == null) {
+                    break;
+                }
+                verified.remove(eldest);
+            }
+        }
+    }
+
+    public int size() {
+        return verified.size();
+    }
+
+    private static final class Key {
+        private final Hash256 txId;
+        private final int inputIndex;
+        private final byte[] signatureHash;
+        private final int hashCode;
+
+        Key(Hash256 txId, int inputIndex, byte[] signature) {
+            this.txId = txId;
+            this.inputIndex = inputIndex;
+            MessageDigest digest = MerkleTree.digest();
+            this.signatureHash = digest.digest(signature);
+            this.hashCode = 31 * (31 * txId.hashCode() + inputIndex) + Arrays.hashCode(signatureHash);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return inputIndex == key.inputIndex && txId.equals(key.txId)
+                    && Arrays.equals(signatureHash, key.signatureHash);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
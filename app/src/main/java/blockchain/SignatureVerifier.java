@@ -0,0 +1,189 @@
+package blockchain;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Verifies ECDSA signatures in batches. A block's (public key, message,
+// signature) checks are split into one slice per thread of a dedicated pool;
+// the first failing check makes every slice stop early. Each thread keeps its
+// own Signature instance instead of looking one up per verification. Checks
+// found in the SignatureCache are skipped and successful ones are added to it.
+public class SignatureVerifier {
+    // below this many checks a batch is verified on the calling thread
+    private static final int PARALLEL_THRESHOLD = 8;
+
+    private static final ThreadLocal<Signature> SIGNATURE = new ThreadLocal<>();
+
+    private final int threadCount;
+    private final ExecutorService verifiers;
+    private final SignatureCache cache; // null: verify everything every time
+
+    public SignatureVerifier(int threadCount) {
+        this(threadCount, null);
+    }
+
+    public SignatureVerifier(int threadCount, SignatureCache cache) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("Thread count must be at least 1");
+        }
+        this.threadCount = threadCount;
+        this.cache = cache;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.verifiers = Executors.newFixedThreadPool(threadCount, runnable -> {
+            Thread thread = new Thread(runnable, "signature-verifier-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static class Check {
+        private final PublicKey publicKey;
+        private final byte[] message;
+        private final byte[] signature;
+        private final Hash256 txId; // null: not cacheable
+        private final int inputIndex;
+
+        public Check(PublicKey publicKey, byte[] message, byte[] signature) {
+            this(publicKey, message, signature, null, -1);
+        }
+
+        public Check(PublicKey publicKey, byte[] message, byte[] signature, Hash256 txId, int inputIndex) {
+            this.publicKey = publicKey;
+            this.message = message;
+            this.signature = signature;
+            this.txId = txId;
+            this.inputIndex = inputIndex;
+        }
+    }
+
+    // One check per input of every transaction that is not a coinbase (genesis or miner reward).
+    public static List<Check> checksFor(List<Transaction> transactions) {
+        List<Check> checks = new ArrayList<>();
+        for (Transaction transaction : transactions) {
+            if (transaction.getInputs().get(0).isCoinbase()) {
+                continue;
+            }
+            checks.addAll(checksFor(transaction));
+        }
+        return checks;
+    }
+
+    // One check per input of transaction.
+    public static List<Check> checksFor(Transaction transaction) {
+        List<Check> checks = new ArrayList<>(transaction.getInputs().size());
+        for (int i = 0; i < transaction.getInputs().size(); i++) {
+            Input input = transaction.getInputs().get(i);
+            checks.add(new Check(input.getPublicKey(), transaction.getSigningBytes(), input.getDigitalSignature(),
+                    transaction.getHash(), i));
+        }
+        return checks;
+    }
+
+    public boolean verifyAll(List<Check> allChecks) {
+        List<Check> checks = allChecks;
+        if (cache != null) {
+            checks = new ArrayList<>(allChecks.size());
+            for (Check check : allChecks) {
+                if (check.txId == null || !cache.contains(check.txId, check.inputIndex, check.signature)) {
+                    checks.add(check);
+                }
+            }
+        }
+
+        if (checks.size() < PARALLEL_THRESHOLD || threadCount == 1) {
+            for (Check check : checks) {
+                if (!verifyAndRemember(check)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        AtomicBoolean failed = new AtomicBoolean(false);
+        List<Check> pending = checks;
+        int slices = Math.min(threadCount, pending.size());
+        List<Callable<Boolean>> tasks = new ArrayList<>(slices);
+        for (int slice = 0; slice < slices; slice++) {
+            int from = pending.size() * slice / slices;
+            int to = pending.size() * (slice + 1) / slices;
+            tasks.add(() -> {
+                for (int i = from; i < to && !failed.get(); i++) {
+                    if (!verifyAndRemember(pending.get(i))) {
+                        failed.set(true);
+                        return false;
+                    }
+                }
+                return true;
+            });
+        }
+
+        try {
+            for (Future<Boolean> result : verifiers.invokeAll(tasks)) {
+                if (!result.get()) {
+                    return false;
+                }
+            }
+            return !failed.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private boolean verifyAndRemember(Check check) {
+        if (!verify(check.publicKey, check.message, check.signature)) {
+            return false;
+        }
+        if (cache != null && check.txId != null) {
+            cache.add(check.txId, check.inputIndex, check.signature);
+        }
+        return true;
+    }
+
+    public static boolean verify(PublicKey publicKey, byte[] message, byte[] signatureBytes) {
+        if (publicKey == null || signatureBytes == null) {
+            return false;
+        }
+        try {
+            Signature signature = SIGNATURE.get();
+            if (signature == null) {
+                signature = newSignature();
+            }
+            try {
+                signature.initVerify(publicKey);
+            } catch (InvalidKeyException e) {
+                // the cached instance is bound to another key type's provider
+                signature = newSignature();
+                signature.initVerify(publicKey);
+            }
+            SIGNATURE.set(signature);
+            signature.update(message);
+            return signature.verify(signatureBytes);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private static Signature newSignature() throws NoSuchAlgorithmException {
+        return Signature.getInstance("SHA256withECDSA");
+    }
+
+    public void shutdown() {
+        verifiers.shutdownNow();
+    }
+}
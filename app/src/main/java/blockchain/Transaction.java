@@ -1,5 +1,9 @@
 package blockchain;
 
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.security.MessageDigest;
 import java.security.PrivateKey;
@@ -7,15 +11,19 @@ import java.security.PublicKey;
 import java.security.Signature;
 import java.util.ArrayList;
 
+// Serialized in the binary form of TransactionCodec rather than field by field.
 public class Transaction implements Serializable {
-    private static final long serialVersionUID = 2317709595944805708L;
-
-    private ArrayList<Input> transactionInputs;
-    private ArrayList<Output> transactionOutputs;
-    private byte[] digitalSignature;
-    private String transactionHash;
-    private double change;
-    private double fee;
+    private static final long serialVersionUID = 2317709595944805709L;
+
+    private transient ArrayList<Input> transactionInputs;
+    private transient ArrayList<Output> transactionOutputs;
+    private transient byte[] digitalSignature;
+    private transient Hash256 transactionHash;
+    private transient byte[] signingBytes; // cached TransactionCodec.encodeSigningBytes
+    private transient long change; // amounts in base units
+    // inputs - outputs; not sent, but set again wherever the transaction is
+    // checked against the UTXO set (UTXOView.feeOf)
+    private transient long fee;
 
     public Transaction(ArrayList<Input> inputs, ArrayList<Output> transactionOutputs) {
         this.transactionInputs = inputs;
@@ -24,15 +32,15 @@ public class Transaction implements Serializable {
     }
 
     // Calculate and return the transaction fee
-    public double getChange() {
+    public long getChange() {
         return change;
     }
 
-    public double getFee() {
+    public long getFee() {
         return fee;
     }
 
-    public void setFee(double fee) {
+    public void setFee(long fee) {
         this.fee = fee;
     }
 
@@ -42,11 +50,19 @@ public class Transaction implements Serializable {
     // This method now calculates the change and indicates where you should add it
     // as an output
 
-    public void calculateAndAddChangeOutput(UTXOPool utxoPool, double transactionFee,
+    // Pays inputs - outputs - fee back to senderAddress. Inputs that cannot cover
+    // the whole fee pay what is left over instead, and no change output is added.
+    public void calculateAndAddChangeOutput(UTXOPool utxoPool, long transactionFee,
+            String senderAddress) {
+        try (UTXOSnapshot utxoSnapshot = utxoPool.snapshot()) {
+            calculateAndAddChangeOutput(utxoSnapshot, transactionFee, senderAddress);
+        }
+    }
+
+    public void calculateAndAddChangeOutput(UTXOSnapshot utxoPool, long transactionFee,
             String senderAddress) {
-        boolean isDone = false;
-        double inputSum = 0;
-        double outputSum = 0;
+        long inputSum = 0;
+        long outputSum = 0;
 
         for (Input input : transactionInputs) {
             UTXOKey utxoKeyToFind = new UTXOKey(input.getTxId(), input.getOutputIndex());
@@ -60,33 +76,18 @@ public class Transaction implements Serializable {
             outputSum += output.getValue();
         }
 
-        while (isDone == false) {
-            // Calculate change
-            double change = inputSum - outputSum - transactionFee;
-            // Ensure change is not negative; if it is, there might be an error in fee
-            // calculation or input selection
-            // Check if the change is negative
-            if (change < 0) {
-                transactionFee /= 10;
-            }
-
-            // If change is non-negative, add an output to send change back to the sender
-            if (change > 0) {
-                isDone = true;
-                System.out.println("Transaction Fee: " + transactionFee);
-                Output outputBackToSender = new Output(change, senderAddress);
-                transactionOutputs.add(outputBackToSender);
-            }
-
-            if (change == 0) {
-                isDone = true;
-                setFee(0);
-                System.out.println("Transaction Fee: 0");
-            } else {
-                setFee(transactionFee);
-            }
+        long surplus = Math.max(inputSum - outputSum, 0);
+        long paidFee = Math.min(transactionFee, surplus);
+        this.change = surplus - paidFee;
+        setFee(paidFee);
+        System.out.println("Transaction Fee: " + Amount.format(paidFee));
+        if (change > 0) {
+            Output outputBackToSender = new Output(change, senderAddress);
+            transactionOutputs.add(outputBackToSender);
+            // the id has to cover the change output as well
+            signingBytes = null;
+            setHash(calculateTransactionHash());
         }
-
     }
 
     public ArrayList<Output> getOutputs() {
@@ -97,68 +98,45 @@ public class Transaction implements Serializable {
         return this.transactionInputs;
     }
 
-    private String calculateTransactionHash() {
-        try {
-            // Concatenate relevant transaction data
-            String transactionData = this.getTransactionString();
-
-            // Compute the hash using SHA-256
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] hashBytes = digest.digest(transactionData.getBytes());
-
-            // Convert byte array to hexadecimal string
-            StringBuilder hexString = new StringBuilder();
-            for (byte b : hashBytes) {
-                String hex = Integer.toHexString(0xff & b);
-                if (hex.length() == 1) {
-                    hexString.append('0');
-                }
-                hexString.append(hex);
-            }
-            return hexString.toString();
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
-        }
+    private Hash256 calculateTransactionHash() {
+        MessageDigest digest = MerkleTree.digest();
+        return Hash256.fromBytes(digest.digest(getSigningBytes()));
     }
 
-    public String getTransactionString() {
-        String transactionInputData = "";
-        String transactionOutputData = "";
-        if (transactionInputs != null) {
-            for (int i = 0; i < transactionInputs.size(); i++) {
-                String transactionString = "";
-                transactionString = (transactionInputs.get(i)).getInputDataAsString();
-                transactionInputData += transactionString;
-            }
-        }
-        for (int i = 0; i < transactionOutputs.size(); i++) {
-            String transactionString = "";
-            transactionString = (transactionOutputs.get(i)).getOutputDataAsString();
-            transactionOutputData += transactionString;
+    // The canonical encoding without signatures: what gets signed and hashed into
+    // the transaction id. Cached, so callers must not modify it.
+    public byte[] getSigningBytes() {
+        if (signingBytes == null) {
+            signingBytes = TransactionCodec.encodeSigningBytes(this);
         }
-        String toReturn = transactionInputData + transactionOutputData;
-        return toReturn;
+        return signingBytes;
     }
 
-    public String getHash() {
+    // size in bytes of the encoded transaction, signatures included
+    public int getSize() {
+        return TransactionCodec.encode(this).length;
+    }
+
+    public Hash256 getHash() {
         return this.transactionHash;
     }
 
-    public void setHash(String hash) {
+    public void setHash(Hash256 hash) {
         this.transactionHash = hash;
     }
 
+    // the id as raw bytes, a merkle leaf
+    public byte[] getHashBytes() {
+        return transactionHash.toBytes();
+    }
+
     // Sign the input using the private key
     public byte[] generateDigitalSignature(PrivateKey privateKey) {
-        // Construct the data that needs to be signed
-        String transactionData = getTransactionString();
-
         // Use the private key to sign the data
         try {
             Signature signature = Signature.getInstance("SHA256withECDSA");
             signature.initSign(privateKey);
-            signature.update(transactionData.getBytes());
+            signature.update(getSigningBytes());
             digitalSignature = signature.sign();
             return digitalSignature;
         } catch (Exception e) {
@@ -169,13 +147,10 @@ public class Transaction implements Serializable {
 
     public boolean verifyTransactionSignature(PublicKey senderKey) {
         try {
-            // Construct the input data that needs to be verified
-            String stringToVerify = getTransactionString();
-
             // Use Signature class to verify the input data with the signature
             Signature signature = Signature.getInstance("SHA256withECDSA");
             signature.initVerify(senderKey);
-            signature.update(stringToVerify.getBytes());
+            signature.update(getSigningBytes());
 
             // Verify the signature
             return signature.verify(this.digitalSignature);
@@ -185,4 +160,36 @@ public class Transaction implements Serializable {
         }
     }
 
+    // Called by TransactionCodec.decode; the id is recomputed from the decoded
+    // bytes rather than taken from the sender.
+    void restore(ArrayList<Input> inputs, ArrayList<Output> outputs, byte[] digitalSignature,
+            byte[] signingBytes) {
+        this.transactionInputs = inputs;
+        this.transactionOutputs = outputs;
+        this.digitalSignature = digitalSignature;
+        this.signingBytes = signingBytes;
+        setHash(calculateTransactionHash());
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        byte[] encoded = TransactionCodec.encode(this);
+        out.writeInt(encoded.length);
+        out.write(encoded);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        int length = in.readInt();
+        if (length < 0 || length > TransactionCodec.MAX_SIZE) {
+            throw new InvalidObjectException("Transaction encoding of " + length + " bytes");
+        }
+        byte[] encoded = new byte[length];
+        in.readFully(encoded);
+        try {
+            TransactionCodec.decode(encoded, this);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidObjectException(e.getMessage());
+        }
+    }
 }
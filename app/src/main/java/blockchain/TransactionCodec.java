@@ -0,0 +1,317 @@
+package blockchain;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// Canonical binary form of a transaction, version 4:
+//
+//   version            1 byte
+//   input count        varint
+//   per input:
+//     previous txid    0x00 + 32 raw bytes for an input that spends an output,
+//                      0x01 + varint length + UTF-8 coinbase data ("genesis")
+//     output index     zigzag varint, -1 (miner rewards) to 2^31 - 1
+//     extra-nonce      zigzag varint
+//     public key       0x00: none,
+//                      0x01 + 33-byte compressed secp256k1 key (PublicKeyTable),
+//                      0x02 + varint length + X.509 encoding for other curves
+//   output count       varint
+//   per output:
+//     amount           8 bytes, big-endian, in base units
+//     address          varint length + UTF-8
+//
+// These are the bytes that are signed and whose SHA-256 is the transaction id.
+// The wire form appends the witness: the transaction's signature (varint length
+// + bytes), then per input 0x00 for no signature, 0x01 when it is the
+// transaction's signature again (the usual case, as a wallet signs once) or
+// 0x02 + varint length + its own signature. Version 1 stored amounts as IEEE 754
+// doubles; version 2 stored every key as X.509 and every input's signature in
+// full; version 3 appended the fee, which nothing signed, so a relayer could
+// change it. The fee is now always inputs - outputs, worked out against the
+// UTXO set (UTXOView.feeOf).
+public class TransactionCodec {
+    public static final int VERSION = 4;
+    // largest encoding accepted from a stream; far above any real transaction
+    public static final int MAX_SIZE = 1 << 20;
+    // the fewest bytes an input (marker, empty coinbase data, index, extra-nonce,
+    // key marker) or an output (amount, empty address) can take
+    private static final int MIN_INPUT_SIZE = 5;
+    private static final int MIN_OUTPUT_SIZE = 9;
+
+    private TransactionCodec() {
+    }
+
+    public static byte[] encodeSigningBytes(Transaction transaction) {
+        Writer writer = new Writer();
+        writeSigningBytes(writer, transaction);
+        return writer.toByteArray();
+    }
+
+    public static byte[] encode(Transaction transaction) {
+        Writer writer = new Writer();
+        writer.write(transaction.getSigningBytes());
+        byte[] transactionSignature = transaction.getDigitalSignature();
+        writer.writeBytes(transactionSignature);
+        for (Input input : transaction.getInputs()) {
+            byte[] signature = input.getDigitalSignature();
+            if (signature == null) {
+                writer.writeByte(0);
+            } else if (Arrays.equals(signature, transactionSignature)) {
+                writer.writeByte(1);
+            } else {
+                writer.writeByte(2);
+                writer.writeBytes(signature);
+            }
+        }
+        return writer.toByteArray();
+    }
+
+    // Reads the wire form back into transaction.
+    public static void decode(byte[] bytes, Transaction transaction) {
+        Reader reader = new Reader(bytes);
+        int version = reader.readByte();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported transaction encoding version " + version);
+        }
+        int inputCount = reader.readCount(MIN_INPUT_SIZE);
+        ArrayList<Input> inputs = new ArrayList<>(inputCount);
+        for (int i = 0; i < inputCount; i++) {
+            Hash256 previousTxId = null;
+            String coinbaseData = null;
+            int marker = reader.readByte();
+            if (marker == 0) {
+                previousTxId = Hash256.fromBytes(reader.readFixed(Hash256.SIZE));
+            } else if (marker == 1) {
+                coinbaseData = new String(reader.readBytes(), StandardCharsets.UTF_8);
+            } else {
+                throw new IllegalArgumentException("Unknown input kind " + marker);
+            }
+            long outputIndex = reader.readZigZag();
+            if (outputIndex < -1 || outputIndex > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Output index " + outputIndex + " out of range");
+            }
+            long extraNonce = reader.readZigZag();
+            PublicKey publicKey = readPublicKey(reader);
+            Input input = coinbaseData == null ? new Input(previousTxId, (int) outputIndex, null, publicKey)
+                    : new Input(coinbaseData, (int) outputIndex, null, publicKey);
+            input.setExtraNonce(extraNonce);
+            inputs.add(input);
+        }
+        int outputCount = reader.readCount(MIN_OUTPUT_SIZE);
+        ArrayList<Output> outputs = new ArrayList<>(outputCount);
+        for (int i = 0; i < outputCount; i++) {
+            long value = reader.readLong();
+            outputs.add(new Output(value, new String(reader.readBytes(), StandardCharsets.UTF_8)));
+        }
+        int signingLength = reader.position();
+
+        byte[] transactionSignature = reader.readBytes();
+        if (transactionSignature.length == 0) {
+            transactionSignature = null;
+        }
+        for (Input input : inputs) {
+            int kind = reader.readByte();
+            if (kind == 1) {
+                // the same array, so the signature is held once in memory as well
+                input.setDigitalSignature(transactionSignature);
+            } else if (kind == 2) {
+                input.setDigitalSignature(reader.readBytes());
+            } else if (kind != 0) {
+                throw new IllegalArgumentException("Unknown signature kind " + kind);
+            }
+        }
+        if (reader.position() != bytes.length) {
+            throw new IllegalArgumentException("Trailing bytes after transaction");
+        }
+
+        byte[] signingBytes = new byte[signingLength];
+        System.arraycopy(bytes, 0, signingBytes, 0, signingLength);
+        transaction.restore(inputs, outputs, transactionSignature, signingBytes);
+    }
+
+    private static void writeSigningBytes(Writer writer, Transaction transaction) {
+        writer.writeByte(VERSION);
+        writer.writeVarInt(transaction.getInputs().size());
+        for (Input input : transaction.getInputs()) {
+            if (!input.isCoinbase()) {
+                writer.writeByte(0);
+                writer.write(input.getTxId().toBytes());
+            } else {
+                writer.writeByte(1);
+                writer.writeBytes(input.getCoinbaseData().getBytes(StandardCharsets.UTF_8));
+            }
+            writer.writeZigZag(input.getOutputIndex());
+            writer.writeZigZag(input.getExtraNonce());
+            writePublicKey(writer, input.getPublicKey());
+        }
+        writer.writeVarInt(transaction.getOutputs().size());
+        for (Output output : transaction.getOutputs()) {
+            writer.writeLong(output.getValue());
+            writer.writeBytes(output.getAddress().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static void writePublicKey(Writer writer, PublicKey publicKey) {
+        if (publicKey == null) {
+            writer.writeByte(0);
+            return;
+        }
+        byte[] compressed = PublicKeyTable.compress(publicKey);
+        if (compressed != null) {
+            writer.writeByte(1);
+            writer.write(compressed);
+        } else {
+            writer.writeByte(2);
+            writer.writeBytes(publicKey.getEncoded());
+        }
+    }
+
+    private static PublicKey readPublicKey(Reader reader) {
+        int kind = reader.readByte();
+        if (kind == 0) {
+            return null;
+        } else if (kind == 1) {
+            return PublicKeyTable.decompress(reader.readFixed(PublicKeyTable.COMPRESSED_SIZE));
+        } else if (kind == 2) {
+            return decodePublicKey(reader.readBytes());
+        }
+        throw new IllegalArgumentException("Unknown public key kind " + kind);
+    }
+
+    // Keys on curves other than secp256k1 (the wallet's curve, see PublicKeyTable)
+    // are left to the default provider, then BouncyCastle.
+    static PublicKey decodePublicKey(byte[] encoded) {
+        X509EncodedKeySpec spec = new X509EncodedKeySpec(encoded);
+        try {
+            return KeyFactory.getInstance("EC").generatePublic(spec);
+        } catch (Exception e) {
+            try {
+                return KeyFactory.getInstance("EC", "BC").generatePublic(spec);
+            } catch (Exception bcException) {
+                throw new IllegalArgumentException("Cannot decode public key", bcException);
+            }
+        }
+    }
+
+    static class Writer {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+
+        void writeByte(int value) {
+            out.write(value);
+        }
+
+        void write(byte[] bytes) {
+            out.write(bytes, 0, bytes.length);
+        }
+
+        void writeVarInt(long value) {
+            while ((value & ~0x7fL) != 0) {
+                out.write((int) (value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+
+        void writeZigZag(long value) {
+            writeVarInt((value << 1) ^ (value >> 63));
+        }
+
+        void writeLong(long value) {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                out.write((int) (value >>> shift));
+            }
+        }
+
+        // null is written like an empty array
+        void writeBytes(byte[] bytes) {
+            if (bytes == null) {
+                writeVarInt(0);
+                return;
+            }
+            writeVarInt(bytes.length);
+            write(bytes);
+        }
+
+        byte[] toByteArray() {
+            return out.toByteArray();
+        }
+    }
+
+    static class Reader {
+        private final byte[] bytes;
+        private int position = 0;
+
+        Reader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        int position() {
+            return this.position;
+        }
+
+        int readByte() {
+            if (position >= bytes.length) {
+                throw new IllegalArgumentException("Truncated transaction");
+            }
+            return bytes[position++] & 0xff;
+        }
+
+        long readVarInt() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Varint too long");
+        }
+
+        long readZigZag() {
+            long value = readVarInt();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        long readLong() {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | readByte();
+            }
+            return value;
+        }
+
+        // A count of elements of at least minimumSize bytes each, which the bytes
+        // left must be able to hold; a peer cannot make us allocate for more
+        int readCount(int minimumSize) {
+            long count = readVarInt();
+            if (count < 0 || count > (bytes.length - position) / minimumSize) {
+                throw new IllegalArgumentException("Count " + count + " does not fit in the transaction");
+            }
+            return (int) count;
+        }
+
+        byte[] readFixed(int length) {
+            if (length < 0 || length > bytes.length - position) {
+                throw new IllegalArgumentException("Truncated transaction");
+            }
+            byte[] read = new byte[length];
+            System.arraycopy(bytes, position, read, 0, length);
+            position += length;
+            return read;
+        }
+
+        byte[] readBytes() {
+            long length = readVarInt();
+            if (length < 0 || length > bytes.length - position) {
+                throw new IllegalArgumentException("Truncated transaction");
+            }
+            return readFixed((int) length);
+        }
+    }
+}
@@ -1,23 +1,49 @@
 package blockchain;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
 public class UTXO implements Serializable {
-    private static final long serialVersionUID = 2317709595944805708L;
+    private static final long serialVersionUID = 2317709595944805709L;
 
-    private double value; // Output value
-    private String address; // Address in the UTXO
+    private long value; // Output value, in base units
+    private transient AddressTable.Entry address; // the address in the UTXO, shared with its output
 
-    public UTXO(double value, String address) {
+    public UTXO(long value, String address) {
+        this(value, AddressTable.intern(address));
+    }
+
+    public UTXO(long value, AddressTable.Entry address) {
         this.value = value;
         this.address = address;
     }
 
-    public double getValue() {
+    public long getValue() {
         return value;
     }
 
     public String getAddress() {
+        return address.getAddress();
+    }
+
+    public int getAddressId() {
+        return address.getId();
+    }
+
+    public AddressTable.Entry getAddressEntry() {
         return address;
     }
+
+    // address ids are local to this process, so the address itself is written
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeUTF(getAddress());
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        this.address = AddressTable.intern(in.readUTF());
+    }
 }
@@ -1,20 +1,19 @@
 package blockchain;
 
 import java.io.Serializable;
-import java.util.Objects;
 
 public class UTXOKey implements Serializable {
-    private static final long serialVersionUID = 2317709595944805708L;
+    private static final long serialVersionUID = 2317709595944805709L;
 
-    private String txHash;
+    private Hash256 txHash;
     private int index;
 
-    public UTXOKey(String txHash, int index) {
+    public UTXOKey(Hash256 txHash, int index) {
         this.txHash = txHash;
         this.index = index;
     }
 
-    public String getTxHash() {
+    public Hash256 getTxHash() {
         return this.txHash;
     }
 
@@ -29,11 +28,11 @@ public class UTXOKey implements Serializable {
         if (o == null || getClass() != o.getClass())
             return false; // Check for null and ensure exact same class
         UTXOKey utxoKey = (UTXOKey) o;
-        return index == utxoKey.index && Objects.equals(txHash, utxoKey.txHash);
+        return index == utxoKey.index && txHash.equals(utxoKey.txHash);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(txHash, index); // Generate a hash code using txHash and index
+        return 31 * txHash.hashCode() + index; // txHash's hash code is precomputed
     }
 }
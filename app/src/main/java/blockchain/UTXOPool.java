@@ -1,53 +1,331 @@
 package blockchain;
 
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
+// The UTXO set, shared by the networking, validation and mining threads.
+//
+// Changes are applied in batches (a whole block at a time) that become visible
+// all at once: every batch gets the next version number, and readers only ever
+// see the state as of some committed version, never half a block. Point reads
+// take no locks. Batches are applied one at a time, as blocks are connected one
+// at a time anyway.
+//
+// snapshot() pins the current version for as long as the snapshot is open, so a
+// template or a balance can be computed against one consistent state while
+// blocks keep being connected. The previous values of keys changed since the
+// oldest open snapshot are kept in a small per-key history, which is dropped as
+// soon as no open snapshot needs it; with no snapshot open it stays empty.
+//
+// The committed UTXOs themselves live in a UTXOStore: on the heap by default, or
+// in a memory-mapped file (MappedUTXOStore).
+//
+// Addresses a wallet asks about are indexed: from the first query on, the pool
+// keeps the set of outpoints paid to the address up to date with every batch,
+// so a balance or coin selection only looks at the wallet's own coins. Only
+// queried addresses are indexed, so the index never holds the whole set on the
+// heap. A spent outpoint leaves the index once no open snapshot can see it.
 public class UTXOPool {
-    private HashMap<UTXOKey, UTXO> utxoMap;
+    private final UTXOStore store; // the state as of the last committed batch
+    private final ConcurrentHashMap<UTXOKey, Version> history = new ConcurrentHashMap<>();
+    private final Set<UTXOKey> retainedHistory = new LinkedHashSet<>(); // guarded by writeLock
+    private final Object writeLock = new Object();
+    private final ConcurrentHashMap<Integer, Set<UTXOKey>> addressIndex = new ConcurrentHashMap<>();
+    private final TreeMap<Long, Integer> openSnapshots = new TreeMap<>(); // version -> count, guarded by itself
+    private volatile long version = 0; // last committed batch
+
+    // One value a key had from version on; null if it was absent
+    private static final class Version {
+        final UTXO utxo;
+        final long version;
+        volatile Version older;
+
+        Version(UTXO utxo, long version, Version older) {
+            this.utxo = utxo;
+            this.version = version;
+            this.older = older;
+        }
+    }
 
     public UTXOPool() {
-        utxoMap = new HashMap<>();
+        this(new HeapUTXOStore());
     }
 
     public UTXOPool(HashMap<UTXOKey, UTXO> utxoMap) {
-        this.utxoMap = utxoMap;
+        this(new HeapUTXOStore(utxoMap));
+    }
+
+    public UTXOPool(UTXOStore store) {
+        this.store = store;
+    }
+
+    public UTXOStore getStore() {
+        return this.store;
     }
 
     public void addUTXO(UTXOKey utxoKey, UTXO utxo) {
-        utxoMap.put(utxoKey, utxo);
+        apply(Collections.singletonMap(utxoKey, utxo));
     }
 
-    public boolean containsUTXOKey(UTXOKey utxoKey) {
-        if (utxoMap.containsKey(utxoKey)) {
+    public void removeFromUTXOPool(UTXOKey key) {
+        apply(Collections.singletonMap(key, null));
+    }
+
+    // Applies changes as one batch: a key mapped to a UTXO is added (or replaced),
+    // a key mapped to null is spent. Readers see either none or all of them.
+    public void apply(Map<UTXOKey, UTXO> changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+        synchronized (writeLock) {
+            long batch = version + 1;
+            // first record the new values where readers of older versions can still
+            // find the previous ones...
+            for (Map.Entry<UTXOKey, UTXO> change : changes.entrySet()) {
+                UTXOKey key = change.getKey();
+                Version previous = history.get(key);
+                if (previous == null) {
+                    previous = new Version(store.get(key), 0, null);
+                }
+                history.put(key, new Version(change.getValue(), batch, previous));
+                retainedHistory.add(key);
+                if (change.getValue() != null) {
+                    Set<UTXOKey> indexed = addressIndex.get(change.getValue().getAddressId());
+                    if (indexed != null) {
+                        indexed.add(key);
+                    }
+                }
+            }
+            // ...then publish the batch and bring the store up to date
+            version = batch;
+            for (Map.Entry<UTXOKey, UTXO> change : changes.entrySet()) {
+                if (change.getValue() == null) {
+                    store.remove(change.getKey());
+                } else {
+                    store.put(change.getKey(), change.getValue());
+                }
+            }
+            pruneHistory();
+        }
+    }
+
+    // Applies changes only if no other batch has been committed since
+    // expectedVersion, all under the same lock: changes computed against a
+    // snapshot of expectedVersion cannot then spend outpoints a batch committed
+    // meanwhile has already spent. Returns false, changing nothing, otherwise.
+    public boolean apply(Map<UTXOKey, UTXO> changes, long expectedVersion) {
+        synchronized (writeLock) {
+            if (version != expectedVersion) {
+                return false;
+            }
+            apply(changes);
             return true;
-        } else {
-            return false;
         }
     }
 
+    // the last committed batch
+    public long getVersion() {
+        return this.version;
+    }
+
+    public boolean containsUTXOKey(UTXOKey utxoKey) {
+        return getUTXO(utxoKey) != null;
+    }
+
     public UTXO getUTXO(UTXOKey utxoKey) {
-        UTXO utxo = this.utxoMap.get(utxoKey);
-        return utxo;
+        return read(utxoKey, version);
     }
 
     public void emptyUTXOPool() {
-        this.utxoMap.clear();
+        synchronized (writeLock) {
+            Map<UTXOKey, UTXO> spendAll = new HashMap<>();
+            store.forEach((key, utxo) -> spendAll.put(key, null));
+            apply(spendAll);
+        }
     }
 
-    public void removeFromUTXOPool(UTXOKey key) {
-        this.utxoMap.remove(key);
+    // Makes this pool hold exactly the UTXOs of other, in one batch
+    public void replaceWith(UTXOPool other) {
+        HashMap<UTXOKey, UTXO> replacement = other.getUTXOMap();
+        synchronized (writeLock) {
+            Map<UTXOKey, UTXO> changes = new HashMap<>();
+            store.forEach((key, utxo) -> {
+                if (!replacement.containsKey(key)) {
+                    changes.put(key, null);
+                }
+            });
+            changes.putAll(replacement);
+            apply(changes);
+        }
+    }
+
+    public void flush() {
+        store.flush();
     }
 
+    // A copy of the current UTXO set; changes to it do not affect the pool
     public HashMap<UTXOKey, UTXO> getUTXOMap() {
-        return this.utxoMap;
+        try (UTXOSnapshot snapshot = snapshot()) {
+            return snapshot.getUTXOMap();
+        }
     }
 
     public ArrayList<UTXO> returnAllUTXOS() {
-        ArrayList<UTXO> utxos = new ArrayList<UTXO>();
-        for (UTXO utxo : utxoMap.values()) {
-            utxos.add(utxo);
+        return new ArrayList<>(getUTXOMap().values());
+    }
+
+    public int size() {
+        return store.size();
+    }
+
+    // The pool as it is now, unaffected by later batches until it is closed
+    public UTXOSnapshot snapshot() {
+        synchronized (openSnapshots) {
+            long pinned = version;
+            openSnapshots.merge(pinned, 1, Integer::sum);
+            return new UTXOSnapshot(this, pinned);
+        }
+    }
+
+    void release(long pinned) {
+        synchronized (openSnapshots) {
+            openSnapshots.computeIfPresent(pinned, (v, count) -> count == 1 ? null : count - 1);
+        }
+    }
+
+    UTXO read(UTXOKey key, long atVersion) {
+        Version changed = history.get(key);
+        if (changed == null) {
+            UTXO utxo = store.get(key);
+            // a batch may have changed the key between the two reads
+            changed = history.get(key);
+            if (changed == null) {
+                return utxo;
+            }
+        }
+        return valueAt(changed, atVersion);
+    }
+
+    private static UTXO valueAt(Version changed, long atVersion) {
+        for (Version v = changed; v != null; v = v.older) {
+            if (v.version <= atVersion) {
+                return v.utxo;
+            }
+        }
+        return null;
+    }
+
+    HashMap<UTXOKey, UTXO> utxosOf(BitSet addressIds, long atVersion) {
+        HashMap<UTXOKey, UTXO> utxos = new HashMap<>();
+        for (int id = addressIds.nextSetBit(0); id >= 0; id = addressIds.nextSetBit(id + 1)) {
+            for (UTXOKey key : indexOf(id)) {
+                UTXO utxo = read(key, atVersion);
+                if (utxo != null && utxo.getAddressId() == id) {
+                    utxos.put(key, utxo);
+                }
+            }
         }
         return utxos;
     }
-}
\ No newline at end of file
+
+    // The indexed outpoints of addressId, which is indexed by one scan of the
+    // store the first time it is asked for. May include spent outpoints.
+    private Set<UTXOKey> indexOf(int addressId) {
+        Set<UTXOKey> indexed = addressIndex.get(addressId);
+        if (indexed != null) {
+            return indexed;
+        }
+        synchronized (writeLock) {
+            indexed = addressIndex.get(addressId);
+            if (indexed != null) {
+                return indexed;
+            }
+            Set<UTXOKey> keys = ConcurrentHashMap.newKeySet();
+            store.forEach((key, utxo) -> {
+                if (utxo.getAddressId() == addressId) {
+                    keys.add(key);
+                }
+            });
+            // outpoints already spent but still visible to open snapshots
+            history.forEach((key, latest) -> {
+                UTXO paid = lastUTXO(latest);
+                if (paid != null && paid.getAddressId() == addressId) {
+                    keys.add(key);
+                }
+            });
+            addressIndex.put(addressId, keys);
+            return keys;
+        }
+    }
+
+    private static UTXO lastUTXO(Version latest) {
+        for (Version v = latest; v != null; v = v.older) {
+            if (v.utxo != null) {
+                return v.utxo;
+            }
+        }
+        return null;
+    }
+
+    HashMap<UTXOKey, UTXO> copy(long atVersion) {
+        HashMap<UTXOKey, UTXO> copy = new HashMap<>(store.size() * 4 / 3 + 1);
+        store.forEach((key, stored) -> {
+            // the stored value was read first, so with no history it is still current
+            Version changed = history.get(key);
+            UTXO utxo = changed == null ? stored : valueAt(changed, atVersion);
+            if (utxo != null) {
+                copy.put(key, utxo);
+            }
+        });
+        // keys spent after atVersion are no longer in the store
+        for (UTXOKey key : history.keySet()) {
+            UTXO utxo = read(key, atVersion);
+            if (utxo != null) {
+                copy.put(key, utxo);
+            } else {
+                copy.remove(key);
+            }
+        }
+        return copy;
+    }
+
+    // Drops history no open snapshot can ask for. Called with writeLock held.
+    private void pruneHistory() {
+        long oldestNeeded;
+        synchronized (openSnapshots) {
+            oldestNeeded = openSnapshots.isEmpty() ? version : Math.min(openSnapshots.firstKey(), version);
+        }
+        Iterator<UTXOKey> keys = retainedHistory.iterator();
+        while (keys.hasNext()) {
+            UTXOKey key = keys.next();
+            Version latest = history.get(key);
+            if (latest == null || latest.version <= oldestNeeded) {
+                // every open snapshot sees the latest value, which is the one in the store
+                history.remove(key);
+                keys.remove();
+                if (latest != null && latest.utxo == null) {
+                    UTXO spent = lastUTXO(latest);
+                    Set<UTXOKey> indexed = spent == null ? null : addressIndex.get(spent.getAddressId());
+                    if (indexed != null) {
+                        indexed.remove(key);
+                    }
+                }
+                continue;
+            }
+            for (Version v = latest; v != null; v = v.older) {
+                if (v.version <= oldestNeeded) {
+                    v.older = null;
+                    break;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package blockchain;
+
+import java.util.BitSet;
+import java.util.HashMap;
+
+// A read-only view of a UTXOPool as of one committed batch. Blocks connected
+// after it was taken are not visible through it. Close it when done, so the
+// pool can forget the values it was keeping for it.
+public class UTXOSnapshot implements AutoCloseable {
+    private final UTXOPool pool;
+    private final long version;
+    private boolean closed;
+
+    UTXOSnapshot(UTXOPool pool, long version) {
+        this.pool = pool;
+        this.version = version;
+    }
+
+    public UTXO getUTXO(UTXOKey utxoKey) {
+        return pool.read(utxoKey, version);
+    }
+
+    public boolean containsUTXOKey(UTXOKey utxoKey) {
+        return getUTXO(utxoKey) != null;
+    }
+
+    // The UTXOs paid to any of the AddressTable ids in addressIds, found through
+    // the pool's address index
+    public HashMap<UTXOKey, UTXO> getUTXOsOf(BitSet addressIds) {
+        return pool.utxosOf(addressIds, version);
+    }
+
+    public HashMap<UTXOKey, UTXO> getUTXOMap() {
+        return pool.copy(version);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            pool.release(version);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package blockchain;
+
+import java.util.function.BiConsumer;
+
+// Where a UTXOPool keeps its committed UTXOs. The pool calls put and remove from
+// one thread at a time; get, size and forEach may be called from any thread
+// while it does.
+public interface UTXOStore {
+    UTXO get(UTXOKey utxoKey);
+
+    void put(UTXOKey utxoKey, UTXO utxo);
+
+    void remove(UTXOKey utxoKey);
+
+    int size();
+
+    // Visits every UTXO in the store. UTXOs put or removed during the visit may
+    // or may not be seen, but one left in place is always seen exactly once.
+    void forEach(BiConsumer<UTXOKey, UTXO> action);
+
+    // Makes the store's contents durable, if it keeps them anywhere but the heap
+    void flush();
+}
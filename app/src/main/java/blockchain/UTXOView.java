@@ -0,0 +1,154 @@
+package blockchain;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// A scratch UTXO set stacked on a UTXOPool (or on another view). Adds and spends
+// only go into the view's own delta, so a template, a candidate block or a
+// candidate fork can be checked without copying or touching the set below.
+// commit() hands the delta down as one batch, in time proportional to the
+// delta; dropping the view discards it.
+//
+// A view over a pool reads a snapshot taken when the view was created, and must
+// be closed. Its commit() fails if anything else was committed to the pool in
+// between, since the delta was checked against a state that is gone.
+public class UTXOView implements AutoCloseable {
+    private final UTXOPool pool;
+    private final UTXOSnapshot snapshot;
+    private final UTXOView parent;
+    private final Map<UTXOKey, UTXO> delta = new LinkedHashMap<>(); // null marks a spent key
+
+    public UTXOView(UTXOPool pool) {
+        this.pool = pool;
+        this.snapshot = pool.snapshot();
+        this.parent = null;
+    }
+
+    public UTXOView(UTXOView parent) {
+        this.pool = null;
+        this.snapshot = null;
+        this.parent = parent;
+    }
+
+    public UTXO getUTXO(UTXOKey utxoKey) {
+        if (delta.containsKey(utxoKey)) {
+            return delta.get(utxoKey);
+        }
+        return parent != null ? parent.getUTXO(utxoKey) : snapshot.getUTXO(utxoKey);
+    }
+
+    public boolean containsUTXOKey(UTXOKey utxoKey) {
+        return getUTXO(utxoKey) != null;
+    }
+
+    public void addUTXO(UTXOKey utxoKey, UTXO utxo) {
+        delta.put(utxoKey, utxo);
+    }
+
+    // false if the key is not unspent in this view
+    public boolean spend(UTXOKey utxoKey) {
+        if (!containsUTXOKey(utxoKey)) {
+            return false;
+        }
+        delta.put(utxoKey, null);
+        return true;
+    }
+
+    // What transaction pays its miner, inputs - outputs as this view sees the
+    // inputs; -1 if an input is not unspent or the outputs exceed the inputs
+    public long feeOf(Transaction transaction) {
+        long inputSum = 0;
+        for (Input input : transaction.getInputs()) {
+            UTXO utxo = getUTXO(new UTXOKey(input.getTxId(), input.getOutputIndex()));
+            if (utxo == null) {
+                return -1;
+            }
+            inputSum += utxo.getValue();
+        }
+        long outputSum = 0;
+        for (Output output : transaction.getOutputs()) {
+            if (output.getValue() < 0) {
+                return -1;
+            }
+            outputSum += output.getValue();
+        }
+        return outputSum > inputSum ? -1 : inputSum - outputSum;
+    }
+
+    // Spends the inputs of every transaction in block and adds its outputs,
+    // setting each transaction's fee from the UTXOs it spends. Returns false,
+    // leaving the view partly updated, at the first transaction that spends an
+    // input that is not unspent or more than its inputs hold; the caller then
+    // drops the view.
+    public boolean connectBlock(Block block) {
+        for (Transaction transaction : block.getBlockTransactions()) {
+            // miner rewards and the genesis output spend nothing
+            if (!transaction.getInputs().get(0).isCoinbase()) {
+                long fee = feeOf(transaction);
+                if (fee < 0) {
+                    System.out.println("Transaction spends missing UTXOs or more than its inputs hold.");
+                    return false;
+                }
+                transaction.setFee(fee);
+                for (Input input : transaction.getInputs()) {
+                    if (!spend(new UTXOKey(input.getTxId(), input.getOutputIndex()))) {
+                        System.out.println("Cannot find UTXO- either spent or never existed.");
+                        return false;
+                    }
+                }
+            }
+            Hash256 transactionHash = transaction.getHash();
+            ArrayList<Output> outputs = transaction.getOutputs();
+            for (int i = 0; i < outputs.size(); i++) {
+                Output output = outputs.get(i);
+                addUTXO(new UTXOKey(transactionHash, i), new UTXO(output.getValue(), output.getAddressEntry()));
+            }
+        }
+        return true;
+    }
+
+    // Takes back a block connected below this view
+    public void disconnectBlock(BlockUndo undo) {
+        delta.putAll(undo.getPreviousUTXOs());
+    }
+
+    // The values below the view of every key in the delta: applied after
+    // commit(), they undo it. A block connected to a fresh view gives its
+    // BlockUndo this way.
+    public Map<UTXOKey, UTXO> undoDelta() {
+        Map<UTXOKey, UTXO> previous = new LinkedHashMap<>();
+        for (UTXOKey utxoKey : delta.keySet()) {
+            previous.put(utxoKey, parent != null ? parent.getUTXO(utxoKey) : snapshot.getUTXO(utxoKey));
+        }
+        return previous;
+    }
+
+    public int getDeltaSize() {
+        return delta.size();
+    }
+
+    // Applies the delta to the pool or view below. A view over a pool is used up
+    // by this: it keeps reading its old snapshot. Returns false, leaving the pool
+    // as it is, if the pool has changed since the view's snapshot was taken.
+    public boolean commit() {
+        if (parent != null) {
+            parent.delta.putAll(delta);
+        } else if (!pool.apply(delta, snapshot.getVersion())) {
+            return false;
+        }
+        delta.clear();
+        return true;
+    }
+
+    public void discard() {
+        delta.clear();
+    }
+
+    @Override
+    public void close() {
+        if (snapshot != null) {
+            snapshot.close();
+        }
+    }
+}
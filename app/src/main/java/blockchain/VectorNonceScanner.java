@@ -0,0 +1,171 @@
+package blockchain;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// Hashes one nonce per SIMD lane: 8 lanes with AVX2, 16 with AVX-512. Every lane
+// starts from the same midstate and hashes the same tail except for the nonce
+// digits, so a batch only takes nonces that have the same number of digits; a
+// batch straddling a power of ten is handed to the scalar hasher instead.
+public class VectorNonceScanner implements NonceScanner {
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+
+    private final HeaderHasher hasher;
+    private final int[] targetWords;
+    private final int[] laneTail = new int[32];
+    // message words and lane results are stored word-major: [word * LANES + lane]
+    private final int[] message = new int[32 * LANES];
+    private final int[] schedule = new int[64 * LANES];
+    private final int[] laneState = new int[8 * LANES];
+    private final int[] wordsOfLane = new int[8];
+
+    public VectorNonceScanner(byte[] headerPrefix, int[] targetWords) {
+        this.hasher = new HeaderHasher(headerPrefix);
+        this.targetWords = targetWords;
+    }
+
+    public static int getLanes() {
+        return LANES;
+    }
+
+    @Override
+    public long scan(long fromNonce, long toNonce) {
+        long nonce = fromNonce;
+        while (nonce < toNonce) {
+            long batchEnd = nonce + LANES;
+            if (batchEnd > toNonce
+                    || HeaderHasher.digitCount((int) nonce) != HeaderHasher.digitCount((int) (batchEnd - 1))) {
+                if (hasher.hashMeetsTarget((int) nonce, targetWords)) {
+                    return nonce;
+                }
+                nonce++;
+                continue;
+            }
+
+            hashBatch((int) nonce);
+            for (int lane = 0; lane < LANES; lane++) {
+                for (int i = 0; i < 8; i++) {
+                    wordsOfLane[i] = laneState[i * LANES + lane];
+                }
+                if (Difficulty.meetsTarget(wordsOfLane, targetWords)) {
+                    return nonce + lane;
+                }
+            }
+            nonce = batchEnd;
+        }
+        return -1;
+    }
+
+    // Hashes firstNonce .. firstNonce + LANES - 1 (all with the same digit count)
+    // and leaves the final states in laneState.
+    void hashBatch(int firstNonce) {
+        int blocks = 0;
+        for (int lane = 0; lane < LANES; lane++) {
+            blocks = hasher.writeTailWords(firstNonce + lane, laneTail);
+            for (int t = 0; t < blocks * 16; t++) {
+                message[t * LANES + lane] = laneTail[t];
+            }
+        }
+
+        int[] midstate = hasher.getMidstate();
+        IntVector a = IntVector.broadcast(SPECIES, midstate[0]);
+        IntVector b = IntVector.broadcast(SPECIES, midstate[1]);
+        IntVector c = IntVector.broadcast(SPECIES, midstate[2]);
+        IntVector d = IntVector.broadcast(SPECIES, midstate[3]);
+        IntVector e = IntVector.broadcast(SPECIES, midstate[4]);
+        IntVector f = IntVector.broadcast(SPECIES, midstate[5]);
+        IntVector g = IntVector.broadcast(SPECIES, midstate[6]);
+        IntVector h = IntVector.broadcast(SPECIES, midstate[7]);
+
+        for (int block = 0; block < blocks; block++) {
+            expandSchedule(block * 16);
+
+            IntVector va = a, vb = b, vc = c, vd = d, ve = e, vf = f, vg = g, vh = h;
+            for (int t = 0; t < 64; t++) {
+                IntVector w = IntVector.fromArray(SPECIES, schedule, t * LANES);
+                IntVector s1 = ve.lanewise(VectorOperators.ROR, 6)
+                        .lanewise(VectorOperators.XOR, ve.lanewise(VectorOperators.ROR, 11))
+                        .lanewise(VectorOperators.XOR, ve.lanewise(VectorOperators.ROR, 25));
+                IntVector ch = ve.and(vf).lanewise(VectorOperators.XOR, ve.not().and(vg));
+                IntVector temp1 = vh.add(s1).add(ch).add(HeaderHasher.K[t]).add(w);
+                IntVector s0 = va.lanewise(VectorOperators.ROR, 2)
+                        .lanewise(VectorOperators.XOR, va.lanewise(VectorOperators.ROR, 13))
+                        .lanewise(VectorOperators.XOR, va.lanewise(VectorOperators.ROR, 22));
+                IntVector maj = va.and(vb).lanewise(VectorOperators.XOR, va.and(vc))
+                        .lanewise(VectorOperators.XOR, vb.and(vc));
+                IntVector temp2 = s0.add(maj);
+                vh = vg;
+                vg = vf;
+                vf = ve;
+                ve = vd.add(temp1);
+                vd = vc;
+                vc = vb;
+                vb = va;
+                va = temp1.add(temp2);
+            }
+            a = a.add(va);
+            b = b.add(vb);
+            c = c.add(vc);
+            d = d.add(vd);
+            e = e.add(ve);
+            f = f.add(vf);
+            g = g.add(vg);
+            h = h.add(vh);
+        }
+
+        a.intoArray(laneState, 0);
+        b.intoArray(laneState, LANES);
+        c.intoArray(laneState, 2 * LANES);
+        d.intoArray(laneState, 3 * LANES);
+        e.intoArray(laneState, 4 * LANES);
+        f.intoArray(laneState, 5 * LANES);
+        g.intoArray(laneState, 6 * LANES);
+        h.intoArray(laneState, 7 * LANES);
+    }
+
+    private void expandSchedule(int firstWord) {
+        System.arraycopy(message, firstWord * LANES, schedule, 0, 16 * LANES);
+        for (int t = 16; t < 64; t++) {
+            IntVector w15 = IntVector.fromArray(SPECIES, schedule, (t - 15) * LANES);
+            IntVector w2 = IntVector.fromArray(SPECIES, schedule, (t - 2) * LANES);
+            IntVector s0 = w15.lanewise(VectorOperators.ROR, 7)
+                    .lanewise(VectorOperators.XOR, w15.lanewise(VectorOperators.ROR, 18))
+                    .lanewise(VectorOperators.XOR, w15.lanewise(VectorOperators.LSHR, 3));
+            IntVector s1 = w2.lanewise(VectorOperators.ROR, 17)
+                    .lanewise(VectorOperators.XOR, w2.lanewise(VectorOperators.ROR, 19))
+                    .lanewise(VectorOperators.XOR, w2.lanewise(VectorOperators.LSHR, 10));
+            IntVector.fromArray(SPECIES, schedule, (t - 16) * LANES)
+                    .add(s0)
+                    .add(IntVector.fromArray(SPECIES, schedule, (t - 7) * LANES))
+                    .add(s1)
+                    .intoArray(schedule, t * LANES);
+        }
+    }
+
+    // Hashes batches for headers whose tails fit one and two blocks, including
+    // batches right below a power of ten, and checks every lane against the
+    // scalar hasher.
+    public static boolean selfTest() {
+        int[] firstNonces = { 0, 1000, 99999999 - LANES + 1, 123456789, Integer.MAX_VALUE - LANES };
+        for (int prefixLength = 0; prefixLength <= 140; prefixLength += 7) {
+            byte[] prefix = "b".repeat(prefixLength).getBytes();
+            VectorNonceScanner scanner = new VectorNonceScanner(prefix, new int[8]);
+            HeaderHasher reference = new HeaderHasher(prefix);
+            for (int firstNonce : firstNonces) {
+                scanner.hashBatch(firstNonce);
+                for (int lane = 0; lane < LANES; lane++) {
+                    reference.hash(firstNonce + lane);
+                    int[] expected = reference.getState();
+                    for (int i = 0; i < 8; i++) {
+                        if (scanner.laneState[i * LANES + lane] != expected[i]) {
+                            return false;
+                        }
+                    }
+                }
+            }
+        }
+        return true;
+    }
+}
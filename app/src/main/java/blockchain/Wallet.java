@@ -8,6 +8,7 @@ import java.security.PublicKey;
 import java.security.Security;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
@@ -16,7 +17,6 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 import org.bitcoinj.core.Base58;
 import org.bouncycastle.crypto.digests.RIPEMD160Digest;
@@ -24,9 +24,16 @@ import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
 public class Wallet implements Serializable {
     private static final long serialVersionUID = 2317709595944805708L;
+    // bytes a transaction grows by once its change output is added and it is signed
+    private static final int CHANGE_OUTPUT_SIZE = 8 + 1 + 34; // amount, address length, Base58 address
+    private static final int SIGNATURE_SIZE = 1 + 72; // length, DER-encoded ECDSA signature (at most)
+    // fee rates in base units per encoded byte (0.001 and 0.005 coins)
+    private static final long FEE_PER_BYTE = 100_000L;
+    private static final long HIGH_PRIORITY_FEE_PER_BYTE = 500_000L;
 
     private PrivateKey privateKey;
     private String address;
+    private transient AddressTable.Entry addressEntry;
     private PublicKey publicKey;
 
     public Wallet() {
@@ -51,32 +58,38 @@ public class Wallet implements Serializable {
 
     public void setAddress(String address) {
         this.address = address;
+        this.addressEntry = null;
+    }
+
+    // held by the wallet, so its address keeps the same AddressTable id
+    private AddressTable.Entry getAddressEntry() {
+        if (addressEntry == null) {
+            addressEntry = AddressTable.intern(address);
+        }
+        return addressEntry;
     }
 
     public String getAddress() {
         return this.address;
     }
 
-    public Transaction performTransaction(String recipientAddress, double amount, Mempool mempool, UTXOPool utxoPool,
+    public Transaction performTransaction(String recipientAddress, long amount, Mempool mempool, UTXOPool utxoPool,
             WalletServer walletServer, int port, boolean highPriority)
             throws NoSuchAlgorithmException {
-        double userBalance = 0;
-        ArrayList<String> userAddresses = new ArrayList<>();
-        ArrayList<Wallet> userWallets = walletServer.getWallets(port);
+        BitSet userAddresses = addressIdsOf(walletServer.getWallets(port));
+        // coins are picked and the change worked out against one state of the pool
+        try (UTXOSnapshot utxoSnapshot = utxoPool.snapshot()) {
+            return performTransaction(recipientAddress, amount, mempool, utxoSnapshot, userAddresses, highPriority);
+        }
+    }
+
+    private Transaction performTransaction(String recipientAddress, long amount, Mempool mempool,
+            UTXOSnapshot utxoPool, BitSet userAddresses, boolean highPriority) throws NoSuchAlgorithmException {
+        long userBalance = 0;
         ArrayList<Input> inputsForTransaction = new ArrayList<>();
         ArrayList<Output> outputsForTransaction = new ArrayList<>();
-        for (Wallet wallet : userWallets) {
-            userAddresses.add(wallet.getAddress());
-        }
 
         Set<UTXOKey> usedUTXOsInMempool = new HashSet<>();
-        List<Map.Entry<UTXOKey, UTXO>> sortedUTXOs = utxoPool.getUTXOMap().entrySet()
-                .stream()
-                .filter(entry -> !usedUTXOsInMempool.contains(entry.getKey())
-                        && userAddresses.contains(entry.getValue().getAddress())) // here
-                .sorted(Map.Entry.comparingByValue(Comparator.comparingDouble(UTXO::getValue).reversed()))
-                .collect(Collectors.toList());
-
         for (Transaction mempoolTx : mempool.getTransactions()) {
             for (Input input : mempoolTx.getInputs()) {
                 UTXOKey key = new UTXOKey(input.getTxId(), input.getOutputIndex());
@@ -84,6 +97,11 @@ public class Wallet implements Serializable {
             }
         }
 
+        // only the user's own coins, through the pool's address index
+        List<Map.Entry<UTXOKey, UTXO>> sortedUTXOs = new ArrayList<>(utxoPool.getUTXOsOf(userAddresses).entrySet());
+        sortedUTXOs.removeIf(entry -> usedUTXOsInMempool.contains(entry.getKey()));
+        sortedUTXOs.sort(Map.Entry.comparingByValue(Comparator.comparingLong(UTXO::getValue).reversed()));
+
         // collect inputs to use for the transaction
 
         // we want to collect all the UTXO addresses = to useraddress
@@ -98,10 +116,8 @@ public class Wallet implements Serializable {
             }
             UTXOKey utxoKey = entry.getKey();
             UTXO utxo = entry.getValue();
-            if (!usedUTXOsInMempool.contains(utxoKey) && userAddresses.contains(utxo.getAddress())) {
-                userBalance += utxo.getValue();
-                inputsForTransaction.add(new Input(utxoKey.getTxHash(), utxoKey.getIndex(), null, publicKey));
-            }
+            userBalance += utxo.getValue();
+            inputsForTransaction.add(new Input(utxoKey.getTxHash(), utxoKey.getIndex(), null, publicKey));
         }
         // Check if enough balance was collected
         if (userBalance < amount) {
@@ -113,12 +129,14 @@ public class Wallet implements Serializable {
         outputsForTransaction.add(new Output(amount, recipientAddress)); // Amount to recipient (0th index)
 
         Transaction incompleteTransaction = new Transaction(inputsForTransaction, outputsForTransaction);
-        double priorityFee = 0.001;
+        long priorityFee = FEE_PER_BYTE;
         if (highPriority) {
-            priorityFee = 0.005;
+            priorityFee = HIGH_PRIORITY_FEE_PER_BYTE;
         }
-        double transactionFee = priorityFee
-                * estimateTransactionSize(inputsForTransaction.size(), outputsForTransaction.size() + 1);
+        // the encoded size so far, plus the change output and the signature still to come;
+        // inputs only refer back to the transaction's signature
+        int pendingBytes = CHANGE_OUTPUT_SIZE + SIGNATURE_SIZE;
+        long transactionFee = priorityFee * (incompleteTransaction.getSize() + pendingBytes);
         String userAddress = generateAddress();
         incompleteTransaction.calculateAndAddChangeOutput(utxoPool, transactionFee, userAddress); // Amount back to
                                                                                                   // sender (Index 1)
@@ -138,16 +156,6 @@ public class Wallet implements Serializable {
         return incompleteTransaction;
     }
 
-    public double estimateTransactionSize(double numberOfInputs, double numberOfOutputs) {
-        // these numbers are based off bitcoin
-        double inputSize = 148; // Average size in bytes
-        double outputSize = 34; // Average size in bytes
-        double overhead = 10; // Average overhead in bytes
-        double calculation = ((numberOfInputs * inputSize) + (numberOfOutputs * outputSize) + overhead);
-        return calculation;
-        // will be something like 0.226
-    }
-
     static {
         Security.addProvider(new BouncyCastleProvider());
     }
@@ -178,17 +186,21 @@ public class Wallet implements Serializable {
         return base58Address;
     }
 
-    public double getBalance(UTXOPool utxoPool, WalletServer walletServer, int port) {
-        ArrayList<String> userAddresses = new ArrayList<>();
-        ArrayList<Wallet> userWallets = walletServer.getWallets(port);
-        for (Wallet wallet : userWallets) {
-            userAddresses.add(wallet.getAddress());
+    // AddressTable ids of the wallets' addresses
+    private static BitSet addressIdsOf(ArrayList<Wallet> wallets) {
+        BitSet ids = new BitSet();
+        for (Wallet wallet : wallets) {
+            ids.set(wallet.getAddressEntry().getId());
         }
+        return ids;
+    }
+
+    public long getBalance(UTXOPool utxoPool, WalletServer walletServer, int port) {
+        BitSet userAddresses = addressIdsOf(walletServer.getWallets(port));
 
-        double balance = 0;
-        HashMap<UTXOKey, UTXO> allUTXOS = utxoPool.getUTXOMap();
-        for (UTXO utxo : allUTXOS.values()) {
-            if (userAddresses.contains(utxo.getAddress())) {
+        long balance = 0;
+        try (UTXOSnapshot utxoSnapshot = utxoPool.snapshot()) {
+            for (UTXO utxo : utxoSnapshot.getUTXOsOf(userAddresses).values()) {
                 balance += utxo.getValue();
             }
         }
@@ -198,23 +210,20 @@ public class Wallet implements Serializable {
     public List<String> getTransactions(Blockchain blockchain, WalletServer walletServer, int port) {
         Map<String, String> transactionMap = new HashMap<>();
         SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-        ArrayList<String> userAddresses = new ArrayList<>();
-        ArrayList<Wallet> userWallets = walletServer.getWallets(port);
-        for (Wallet wallet : userWallets) {
-            userAddresses.add(wallet.getAddress());
-        }
+        BitSet userAddresses = addressIdsOf(walletServer.getWallets(port));
         for (Block block : blockchain.getChain()) {
             long timestamp = block.getTimeStamp();
             String newTimestamp = formatter.format(new Date(timestamp));
             for (Transaction transaction : block.getBlockTransactions()) {
-                String transactionHash = transaction.getHash();
+                Hash256 transactionHash = transaction.getHash();
                 for (Output output : transaction.getOutputs()) {
-                    if (userAddresses.contains(output.getAddress())) {
-                        double amount = output.getValue();
+                    if (userAddresses.get(output.getAddressId())) {
+                        long amount = output.getValue();
                         String transactionKey = transactionHash + "-" + block.getBlockNumber(); // Unique key
                         String transactionInfo = String.format(
-                                "Block: %d Transaction Hash: %s Address: %s End Amount Received/Returned: %.2f timestamp: %s",
-                                block.getBlockNumber(), transactionHash, output.getAddress(), amount, newTimestamp);
+                                "Block: %d Transaction Hash: %s Address: %s End Amount Received/Returned: %s timestamp: %s",
+                                block.getBlockNumber(), transactionHash, output.getAddress(), Amount.format(amount),
+                                newTimestamp);
                         transactionMap.put(transactionKey, transactionInfo); // Only stores unique transactions
                     }
                 }
@@ -241,13 +250,14 @@ public class Wallet implements Serializable {
             long timestamp = block.getTimeStamp();
             String newTimestamp = formatter.format(new Date(timestamp));
             for (Transaction transaction : block.getBlockTransactions()) {
-                String transactionHash = transaction.getHash();
+                Hash256 transactionHash = transaction.getHash();
                 for (Output output : transaction.getOutputs()) {
-                    double amount = output.getValue();
+                    long amount = output.getValue();
                     String transactionKey = transactionHash + "-" + block.getBlockNumber(); // Unique key
                     String transactionInfo = String.format(
-                            "Block: %d Transaction Hash: %s Address: %s End Amount Received/Returned: %.2f timestamp: %s",
-                            block.getBlockNumber(), transactionHash, output.getAddress(), amount, newTimestamp);
+                            "Block: %d Transaction Hash: %s Address: %s End Amount Received/Returned: %s timestamp: %s",
+                            block.getBlockNumber(), transactionHash, output.getAddress(), Amount.format(amount),
+                            newTimestamp);
                     transactionMap.put(transactionKey, transactionInfo); // Only stores unique transactions
                 }
             }
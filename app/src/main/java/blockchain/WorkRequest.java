@@ -0,0 +1,18 @@
+package blockchain;
+
+import java.io.Serializable;
+
+// Sent by a remote miner that needs a (new) work unit.
+public class WorkRequest implements Serializable {
+    private static final long serialVersionUID = 2317709595944805708L;
+
+    private final String minerName;
+
+    public WorkRequest(String minerName) {
+        this.minerName = minerName;
+    }
+
+    public String getMinerName() {
+        return this.minerName;
+    }
+}
@@ -0,0 +1,42 @@
+package blockchain;
+
+import java.io.Serializable;
+
+// The node's verdict on a WorkSubmission.
+public class WorkResult implements Serializable {
+    private static final long serialVersionUID = 2317709595944805708L;
+
+    private final long jobId;
+    private final int nonce;
+    private final boolean accepted;
+    private final boolean blockFound;
+    private final String message;
+
+    public WorkResult(long jobId, int nonce, boolean accepted, boolean blockFound, String message) {
+        this.jobId = jobId;
+        this.nonce = nonce;
+        this.accepted = accepted;
+        this.blockFound = blockFound;
+        this.message = message;
+    }
+
+    public long getJobId() {
+        return this.jobId;
+    }
+
+    public int getNonce() {
+        return this.nonce;
+    }
+
+    public boolean isAccepted() {
+        return this.accepted;
+    }
+
+    public boolean isBlockFound() {
+        return this.blockFound;
+    }
+
+    public String getMessage() {
+        return this.message;
+    }
+}
@@ -0,0 +1,215 @@
+package blockchain;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Hands out work on the block the node is mining to external miner processes
+// (see RemoteMiner) over TCP, Stratum style: miners ask for work, the server
+// pushes fresh work whenever the node starts a new template, and miners submit
+// shares. Every work unit gets its own negative extra-nonce, so
+// remote miners never hash a header the node's own workers, or each other, hash.
+// A share that meets the block target is passed to the template, which stops
+// the local search; mineBlock then builds the block and Node broadcasts it as
+// if it had been found locally.
+public class WorkServer implements Runnable {
+    // shares are checked against this easier target (about one share per 2^22
+    // hashes) so the node sees miners working between blocks; -Dwork.shareBits overrides
+    private static final int SHARE_BITS = Integer.decode(System.getProperty("work.shareBits", "0x1e040000"));
+
+    private final int port;
+    private ServerSocket serverSocket;
+    private final ExecutorService executorService = Executors.newCachedThreadPool();
+    private final Map<String, MinerConnection> miners = new ConcurrentHashMap<>();
+    private final Map<Long, WorkUnit> workUnits = new ConcurrentHashMap<>();
+    private final AtomicLong nextJobId = new AtomicLong(1);
+    private final AtomicLong nextExtraNonce = new AtomicLong(-1);
+    private volatile BlockTemplate currentTemplate;
+
+    public WorkServer(int port) {
+        this.port = port;
+        try {
+            // there is no authentication, so only local miners can connect unless
+            // -Dwork.bindAddress opens the port to other machines
+            serverSocket = new ServerSocket(this.port, 50,
+                    InetAddress.getByName(System.getProperty("work.bindAddress", "127.0.0.1")));
+        } catch (IOException e) {
+            System.err.println("Could not start work server on port " + this.port + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void run() {
+        if (serverSocket == null) {
+            return;
+        }
+        System.out.println("WorkServer listening on port " + this.port);
+        while (!Thread.currentThread().isInterrupted() && !serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                executorService.submit(() -> manageMiner(socket));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    System.err.println("Error accepting miner connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Called by Mining for every template it starts on. Work units of the previous
+    // template are dropped and every connected miner is switched to the new one.
+    public void publish(BlockTemplate template) {
+        currentTemplate = template;
+        workUnits.clear();
+        miners.values().forEach(this::sendWork);
+    }
+
+    private void manageMiner(Socket socket) {
+        String endpoint = socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+        MinerConnection miner = null;
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+            out.flush();
+            ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+            miner = new MinerConnection(socket, out, endpoint);
+            miners.put(endpoint, miner);
+            System.out.println("Remote miner connected: " + endpoint);
+
+            while (!socket.isClosed()) {
+                Object received = in.readObject();
+                if (received instanceof WorkRequest) {
+                    miner.name = ((WorkRequest) received).getMinerName();
+                    sendWork(miner);
+                } else if (received instanceof WorkSubmission) {
+                    send(miner, checkSubmission(miner, (WorkSubmission) received));
+                }
+            }
+        } catch (EOFException e) {
+            System.out.println("Remote miner disconnected: " + endpoint);
+        } catch (IOException | ClassNotFoundException e) {
+            System.err.println("Error during communication with miner " + endpoint + ": " + e.getMessage());
+        } finally {
+            miners.remove(endpoint);
+            if (miner != null) {
+                System.out.println("Remote miner " + miner.name + " submitted " + miner.acceptedShares
+                        + " accepted shares.");
+            }
+            closeSocket(socket);
+        }
+    }
+
+    private void sendWork(MinerConnection miner) {
+        BlockTemplate template = currentTemplate;
+        if (template == null || template.isStale()) {
+            return; // the miner gets work as soon as the next template is published
+        }
+        long jobId = nextJobId.getAndIncrement();
+        long extraNonce = nextExtraNonce.getAndDecrement();
+        byte[] headerPrefix = template.getHeaders().headerPrefix(template.getTimestamp(), extraNonce);
+        int shareBits = SHARE_BITS;
+        if (Difficulty.toTarget(template.getDifficultyBits()).compareTo(Difficulty.toTarget(shareBits)) > 0) {
+            shareBits = template.getDifficultyBits(); // every block must also count as a share
+        }
+        workUnits.put(jobId, new WorkUnit(template, extraNonce, headerPrefix, shareBits));
+        send(miner, new WorkTemplate(jobId, template.getPreviousHash(), headerPrefix, template.getDifficultyBits(),
+                shareBits));
+    }
+
+    private WorkResult checkSubmission(MinerConnection miner, WorkSubmission submission) {
+        long jobId = submission.getJobId();
+        int nonce = submission.getNonce();
+        WorkUnit unit = workUnits.get(jobId);
+        if (unit == null || unit.template != currentTemplate || unit.template.isStale()) {
+            return new WorkResult(jobId, nonce, false, false, "Stale job");
+        }
+        if (!unit.submittedNonces.add(nonce)) {
+            return new WorkResult(jobId, nonce, false, false, "Duplicate share");
+        }
+        HeaderHasher hasher = new HeaderHasher(unit.headerPrefix);
+        if (!hasher.hashMeetsTarget(nonce, Difficulty.toTargetWords(unit.shareBits))) {
+            return new WorkResult(jobId, nonce, false, false, "Share misses the share target");
+        }
+        miner.acceptedShares++;
+        if (unit.template.submit(unit.template.getTimestamp(), unit.extraNonce, nonce)) {
+            System.out.println("Remote miner " + miner.name + " found block " + hasher.hexDigest());
+            return new WorkResult(jobId, nonce, true, true, "Block found");
+        }
+        return new WorkResult(jobId, nonce, true, false, "Share accepted");
+    }
+
+    private void send(MinerConnection miner, Object message) {
+        // publish() and the miner's own connection thread both write to it
+        synchronized (miner.out) {
+            try {
+                miner.out.writeObject(message);
+                miner.out.flush();
+                miner.out.reset(); // do not keep every sent work unit referenced
+            } catch (IOException e) {
+                System.err.println("Failed to send to miner " + miner.endpoint + ": " + e.getMessage());
+                closeSocket(miner.socket);
+            }
+        }
+    }
+
+    private void closeSocket(Socket socket) {
+        if (socket != null && !socket.isClosed()) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close miner socket: " + e.getMessage());
+            }
+        }
+    }
+
+    public void shutdown() {
+        try {
+            executorService.shutdownNow();
+            if (serverSocket != null && !serverSocket.isClosed()) {
+                serverSocket.close();
+            }
+            miners.values().forEach(miner -> closeSocket(miner.socket));
+        } catch (IOException e) {
+            System.err.println("Error closing work server socket during shutdown: " + e.getMessage());
+        }
+    }
+
+    private static class MinerConnection {
+        private final Socket socket;
+        private final ObjectOutputStream out;
+        private final String endpoint;
+        private volatile String name;
+        private volatile long acceptedShares; // only updated by the miner's connection thread
+
+        MinerConnection(Socket socket, ObjectOutputStream out, String endpoint) {
+            this.socket = socket;
+            this.out = out;
+            this.endpoint = endpoint;
+            this.name = endpoint;
+        }
+    }
+
+    private static class WorkUnit {
+        private final BlockTemplate template;
+        private final long extraNonce;
+        private final byte[] headerPrefix;
+        private final int shareBits;
+        private final Set<Integer> submittedNonces = ConcurrentHashMap.newKeySet();
+
+        WorkUnit(BlockTemplate template, long extraNonce, byte[] headerPrefix, int shareBits) {
+            this.template = template;
+            this.extraNonce = extraNonce;
+            this.headerPrefix = headerPrefix;
+            this.shareBits = shareBits;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package blockchain;
+
+import java.io.Serializable;
+
+// A nonce a remote miner found for one of its work units.
+public class WorkSubmission implements Serializable {
+    private static final long serialVersionUID = 2317709595944805708L;
+
+    private final long jobId;
+    private final int nonce;
+
+    public WorkSubmission(long jobId, int nonce) {
+        this.jobId = jobId;
+        this.nonce = nonce;
+    }
+
+    public long getJobId() {
+        return this.jobId;
+    }
+
+    public int getNonce() {
+        return this.nonce;
+    }
+}
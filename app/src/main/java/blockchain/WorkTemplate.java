@@ -0,0 +1,46 @@
+package blockchain;
+
+import java.io.Serializable;
+
+// A work unit for a remote miner: the header of the block being mined up to the
+// nonce, with an extra-nonce no other miner has been given. The miner hashes the
+// nonces 0 .. 2^31 - 1 and submits every nonce whose hash meets shareBits; a
+// share that also meets difficultyBits is a block. A WorkTemplate arriving while
+// a unit is being hashed replaces it, since the old one is stale.
+public class WorkTemplate implements Serializable {
+    private static final long serialVersionUID = 2317709595944805708L;
+
+    private final long jobId;
+    private final String previousHash;
+    private final byte[] headerPrefix;
+    private final int difficultyBits;
+    private final int shareBits;
+
+    public WorkTemplate(long jobId, String previousHash, byte[] headerPrefix, int difficultyBits, int shareBits) {
+        this.jobId = jobId;
+        this.previousHash = previousHash;
+        this.headerPrefix = headerPrefix;
+        this.difficultyBits = difficultyBits;
+        this.shareBits = shareBits;
+    }
+
+    public long getJobId() {
+        return this.jobId;
+    }
+
+    public String getPreviousHash() {
+        return this.previousHash;
+    }
+
+    public byte[] getHeaderPrefix() {
+        return this.headerPrefix;
+    }
+
+    public int getDifficultyBits() {
+        return this.difficultyBits;
+    }
+
+    public int getShareBits() {
+        return this.shareBits;
+    }
+}
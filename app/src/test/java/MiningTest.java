@@ -1,19 +1,81 @@
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
+import org.bouncycastle.jce.ECNamedCurveTable;
+import org.bouncycastle.math.ec.ECPoint;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import blockchain.AddressTable;
+import blockchain.Amount;
+import blockchain.Block;
+import blockchain.BlockTemplate;
+import blockchain.Blockchain;
+import blockchain.CpuBudget;
+import blockchain.Difficulty;
+import blockchain.FileSaver;
+import blockchain.Hash256;
+import blockchain.HashingEngine;
+import blockchain.HeaderHasher;
+import blockchain.HeaderTemplate;
+import blockchain.IncrementalMerkleTree;
 import blockchain.Input;
+import blockchain.KeyPairs;
+import blockchain.MappedUTXOStore;
+import blockchain.MerkleProof;
+import blockchain.MerkleProofRequest;
+import blockchain.MerkleProofResponse;
+import blockchain.MerkleTree;
 import blockchain.Mining;
+import blockchain.MiningJob;
+import blockchain.MiningStats;
 import blockchain.Node;
 import blockchain.Output;
+import blockchain.ParallelMiner;
+import blockchain.PublicKeyTable;
+import blockchain.RemoteMiner;
+import blockchain.SignatureCache;
+import blockchain.SignatureVerifier;
 import blockchain.Transaction;
+import blockchain.TransactionCodec;
+import blockchain.UTXO;
+import blockchain.UTXOKey;
 import blockchain.UTXOPool;
+import blockchain.UTXOSnapshot;
+import blockchain.UTXOView;
+import blockchain.VectorNonceScanner;
+import blockchain.WorkRequest;
+import blockchain.WorkResult;
+import blockchain.WorkServer;
+import blockchain.WorkSubmission;
+import blockchain.WorkTemplate;
 
 class MiningTest {
     private Node node;
@@ -21,7 +83,7 @@ class MiningTest {
     private UTXOPool utxoPool;
     private String previousHash = "0000000000000000000";
     private String minerAddress = "1A1zP1eP5QGefi2DMPTfTL5SLmv7DivfNa";
-    private double minerReward = 2;
+    private long minerReward = 2 * Amount.COIN;
     private KeyPair keyPair;
 
     @BeforeEach
@@ -78,6 +140,83 @@ class MiningTest {
         assertFalse(merkleRoot.isEmpty());
     }
 
+    @Test
+    void testMerkleTreeHashesRawTransactionIds() throws NoSuchAlgorithmException {
+        ArrayList<Transaction> transactions = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            ArrayList<Input> inputs = new ArrayList<>();
+            inputs.add(new Input("txid" + i, i, new byte[] {}, keyPair.getPublic()));
+            ArrayList<Output> outputs = new ArrayList<>();
+            outputs.add(new Output(10 + i, "address" + i));
+            transactions.add(new Transaction(inputs, outputs));
+        }
+
+        // odd levels pair their last node with itself
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        md.update(transactions.get(0).getHashBytes());
+        byte[] left = md.digest(transactions.get(1).getHashBytes());
+        md.update(transactions.get(2).getHashBytes());
+        byte[] right = md.digest(transactions.get(2).getHashBytes());
+        md.update(left);
+        byte[] expected = md.digest(right);
+
+        assertEquals(mining.byteToString(expected), mining.merkleRootHash(transactions));
+        assertEquals(transactions.get(0).getHash().toString(),
+                mining.merkleRootHash(new ArrayList<>(transactions.subList(0, 1))));
+    }
+
+    @Test
+    void testHash256RoundTripsHexAndBytes() {
+        String hex = "00ff00ff00ff00ff0123456789abcdef" + "fedcba98765432100000000000000001";
+        Hash256 hash = Hash256.fromHex(hex);
+        assertEquals(hex, hash.toString());
+        assertEquals(hash, Hash256.fromBytes(hash.toBytes()));
+        assertEquals(hash.hashCode(), Hash256.fromHex(hex.toUpperCase()).hashCode());
+        assertNotEquals(hash, Hash256.fromHex(hex.substring(0, 63) + "2"));
+        assertThrows(IllegalArgumentException.class, () -> Hash256.fromHex("genesis"));
+    }
+
+    @Test
+    void testMerkleProofsVerifyForEveryLeaf() {
+        for (int size = 1; size <= 9; size++) {
+            byte[] leaves = new byte[size * MerkleTree.HASH_SIZE];
+            for (int i = 0; i < leaves.length; i++) {
+                leaves[i] = (byte) (i * 31 + size);
+            }
+            MerkleTree tree = new MerkleTree(leaves);
+            byte[] root = tree.getRoot();
+            for (int index = 0; index < size; index++) {
+                byte[] leaf = Arrays.copyOfRange(leaves, index * MerkleTree.HASH_SIZE,
+                        (index + 1) * MerkleTree.HASH_SIZE);
+                MerkleProof proof = tree.proof(index);
+                assertTrue(proof.verify(leaf, root));
+                leaf[0] ^= 1;
+                assertFalse(proof.verify(leaf, root));
+            }
+        }
+    }
+
+    @Test
+    void testIncrementalMerkleTreeMatchesFullRebuild() {
+        IncrementalMerkleTree incremental = new IncrementalMerkleTree();
+        byte[] leaves = new byte[0];
+        for (int size = 1; size <= 40; size++) {
+            byte[] leaf = new byte[MerkleTree.HASH_SIZE];
+            Arrays.fill(leaf, (byte) size);
+            incremental.append(leaf);
+            leaves = Arrays.copyOf(leaves, size * MerkleTree.HASH_SIZE);
+            System.arraycopy(leaf, 0, leaves, (size - 1) * MerkleTree.HASH_SIZE, MerkleTree.HASH_SIZE);
+            assertArrayEquals(new MerkleTree(leaves).getRoot(), incremental.getRoot());
+
+            // swap a leaf out the way a new extra-nonce swaps the reward transaction
+            int index = (size * 5 + 3) % size;
+            leaf[1] ^= 0x55;
+            incremental.replace(index, leaf);
+            System.arraycopy(leaf, 0, leaves, index * MerkleTree.HASH_SIZE, MerkleTree.HASH_SIZE);
+            assertArrayEquals(new MerkleTree(leaves).getRoot(), incremental.getRoot());
+        }
+    }
+
     @Test
     void testCalculateBlockHash() {
         ArrayList<Input> inputs = new ArrayList<>();
@@ -92,12 +231,956 @@ class MiningTest {
         String blockHash = mining.calculateBlockHash(previousHash, System.currentTimeMillis(), merkleRoot);
         assertNotNull(blockHash);
         assertTrue(blockHash.startsWith("000"));
+        assertTrue(Difficulty.meetsTarget(blockHash, mining.getDifficultyBits()));
+    }
+
+    @Test
+    void testCompactTargetRoundTrip() {
+        assertEquals(BigInteger.ONE.shiftLeft(232), Difficulty.toTarget(Difficulty.INITIAL_BITS));
+        assertEquals(Difficulty.INITIAL_BITS, Difficulty.toBits(Difficulty.toTarget(Difficulty.INITIAL_BITS)));
+        // a mantissa with its top bit set has to move up a byte to stay positive
+        assertEquals(0x1e008000, Difficulty.toBits(BigInteger.valueOf(0x80).shiftLeft(224)));
+        assertEquals(BigInteger.valueOf(0x80).shiftLeft(224), Difficulty.toTarget(0x1e008000));
+    }
+
+    @Test
+    void testHeaderHasherMatchesMessageDigest() throws NoSuchAlgorithmException {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        int[] nonces = { 0, 7, 42, 999, 123456, 99999999, Integer.MAX_VALUE };
+        // cover prefixes whose tail fits one final block, spills into a second, and is empty
+        for (int prefixLength = 0; prefixLength <= 140; prefixLength++) {
+            String prefix = "a".repeat(prefixLength);
+            HeaderHasher hasher = new HeaderHasher(prefix.getBytes());
+            for (int nonce : nonces) {
+                hasher.hash(nonce);
+                byte[] expected = md.digest((prefix + nonce).getBytes());
+                assertEquals(mining.byteToString(expected), mining.byteToString(hasher.digest()));
+            }
+        }
+    }
+
+    @Test
+    void testVectorEngineMatchesScalar() {
+        assertTrue(VectorNonceScanner.selfTest());
+        String merkleRoot = "4a5e1e4baab89f3a32518a88c31bc87f618f76673e2cc77ab2127b7afdeda33b";
+        long timestamp = 1700000000000L;
+        mining.setDifficultyBits(Difficulty.LIMIT_BITS);
+        String scalarHash = mining.calculateBlockHash(previousHash, timestamp, merkleRoot);
+
+        Mining vectorMining = new Mining(previousHash, minerAddress, utxoPool, minerReward);
+        vectorMining.setDifficultyBits(Difficulty.LIMIT_BITS);
+        vectorMining.setHashingEngine(HashingEngine.VECTOR);
+        assertEquals(scalarHash, vectorMining.calculateBlockHash(previousHash, timestamp, merkleRoot));
+        assertEquals(mining.getNonce(), vectorMining.getNonce());
+    }
+
+    @Test
+    void testParallelSearchMatchesSequential() {
+        String merkleRoot = "4a5e1e4baab89f3a32518a88c31bc87f618f76673e2cc77ab2127b7afdeda33b";
+        long timestamp = 1700000000000L;
+        mining.setDifficultyBits(Difficulty.LIMIT_BITS);
+        String sequentialHash = mining.calculateBlockHash(previousHash, timestamp, merkleRoot);
+
+        ParallelMiner parallelMiner = new ParallelMiner(4);
+        Mining parallelMining = new Mining(previousHash, minerAddress, utxoPool, minerReward);
+        parallelMining.setDifficultyBits(Difficulty.LIMIT_BITS);
+        parallelMining.setParallelMiner(parallelMiner);
+        String parallelHash = parallelMining.calculateBlockHash(previousHash, timestamp, merkleRoot);
+        parallelMiner.shutdown();
+
+        assertEquals(sequentialHash, parallelHash);
+        assertEquals(mining.getNonce(), parallelMining.getNonce());
+    }
+
+    @Test
+    void testTemplateSearchGivesWorkersTheirOwnExtraNonces() {
+        long timestamp = 1700000000000L;
+        HeaderTemplate template = (templateTimestamp, extraNonce) -> Block.headerPrefix(previousHash,
+                templateTimestamp, "root" + extraNonce, Difficulty.LIMIT_BITS);
+        mining.setDifficultyBits(Difficulty.LIMIT_BITS);
+        ParallelMiner parallelMiner = new ParallelMiner(4);
+        ParallelMiner.Solution solution = parallelMiner.searchTemplate(mining, template, timestamp);
+        parallelMiner.shutdown();
+
+        assertTrue(solution.getExtraNonce() >= 0 && solution.getExtraNonce() < 4);
+        HeaderHasher hasher = new HeaderHasher(template.headerPrefix(solution.getTimestamp(),
+                solution.getExtraNonce()));
+        hasher.hash(solution.getNonce());
+        assertEquals(hasher.hexDigest(), solution.getBlockHash());
+        assertTrue(Difficulty.meetsTarget(solution.getBlockHash(), Difficulty.LIMIT_BITS));
+    }
+
+    @Test
+    void testExtraNonceChangesRewardTransactionHash() {
+        ArrayList<Output> outputs = new ArrayList<>();
+        outputs.add(new Output(2, minerAddress));
+        ArrayList<Input> inputs = new ArrayList<>();
+        inputs.add(new Input("reward1", -1, null, null));
+        Hash256 firstHash = new Transaction(inputs, outputs).getHash();
+
+        ArrayList<Input> rolledInputs = new ArrayList<>();
+        Input rolledInput = new Input("reward1", -1, null, null);
+        rolledInput.setExtraNonce(7);
+        rolledInputs.add(rolledInput);
+        assertNotEquals(firstHash, new Transaction(rolledInputs, outputs).getHash());
+    }
+
+    @Test
+    void testTransactionEncodingRoundTrip() throws Exception {
+        ArrayList<Input> inputs = new ArrayList<>();
+        inputs.add(new Input(Hash256.fromHex("0123456789abcdef".repeat(4)), 1, null, keyPair.getPublic()));
+        inputs.add(new Input("genesis", 0, null, keyPair.getPublic()));
+        ArrayList<Output> outputs = new ArrayList<>();
+        outputs.add(new Output(Amount.parse("12.5"), "address1"));
+        outputs.add(new Output(Amount.parse("0.25"), "address2"));
+        Transaction transaction = new Transaction(inputs, outputs);
+        transaction.setFee(Amount.parse("0.001"));
+        byte[] signature = transaction.generateDigitalSignature(keyPair.getPrivate());
+        for (Input input : inputs) {
+            input.setDigitalSignature(signature);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(transaction);
+        }
+        Transaction copy;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            copy = (Transaction) in.readObject();
+        }
+
+        assertEquals(transaction.getHash(), copy.getHash());
+        assertArrayEquals(transaction.getSigningBytes(), copy.getSigningBytes());
+        assertEquals(inputs.get(0).getTxId(), copy.getInputs().get(0).getTxId());
+        assertEquals("genesis", copy.getInputs().get(1).getCoinbaseData());
+        assertFalse(copy.getInputs().get(0).isCoinbase());
+        assertEquals(25_000_000L, copy.getOutputs().get(1).getValue());
+        assertEquals(0, copy.getFee()); // not sent; worked out against the UTXO set
+        Input copiedInput = copy.getInputs().get(1);
+        assertTrue(copiedInput.verifySignature(copiedInput.getPublicKey(), copy.getSigningBytes()));
+    }
+
+    @Test
+    void testTransactionDecodingRejectsOversizedCounts() throws Exception {
+        ArrayList<Input> inputs = new ArrayList<>();
+        inputs.add(new Input("genesis", 0, null, keyPair.getPublic()));
+        ArrayList<Output> outputs = new ArrayList<>();
+        outputs.add(new Output(Amount.parse("1"), "address1"));
+        Transaction transaction = new Transaction(inputs, outputs);
+
+        // the version, then an input count of 2^31 - 1 and of 2^64 - 1 (negative as a long)
+        byte version = (byte) TransactionCodec.VERSION;
+        byte[] hugeCount = { version, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07 };
+        assertTrue(assertThrows(IllegalArgumentException.class,
+                () -> TransactionCodec.decode(hugeCount, transaction)).getMessage().startsWith("Count"));
+        byte[] negativeCount = new byte[11];
+        negativeCount[0] = version;
+        Arrays.fill(negativeCount, 1, 10, (byte) 0xff);
+        negativeCount[10] = 0x01;
+        assertTrue(assertThrows(IllegalArgumentException.class,
+                () -> TransactionCodec.decode(negativeCount, transaction)).getMessage().startsWith("Count"));
+
+        // one input with an unknown kind marker, and one whose output index is 2^31
+        byte[] unknownKind = { version, 1, 2, 0, 0, 0, 0, 0, 0, 0 };
+        assertTrue(assertThrows(IllegalArgumentException.class,
+                () -> TransactionCodec.decode(unknownKind, transaction)).getMessage().startsWith("Unknown input"));
+        byte[] hugeIndex = { version, 1, 1, 0, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x10, 0, 0, 0 };
+        assertTrue(assertThrows(IllegalArgumentException.class,
+                () -> TransactionCodec.decode(hugeIndex, transaction)).getMessage().startsWith("Output index"));
+
+        // a serialized transaction whose length prefix claims 2 GiB
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(transaction);
+        }
+        byte[] stream = bytes.toByteArray();
+        byte[] encoded = TransactionCodec.encode(transaction);
+        int at = indexOf(stream, encoded) - 4;
+        assertTrue(at >= 0);
+        stream[at] = 0x7f;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(stream))) {
+            assertThrows(InvalidObjectException.class, in::readObject);
+        }
+    }
+
+    private static int indexOf(byte[] haystack, byte[] needle) {
+        for (int i = 0; i + needle.length <= haystack.length; i++) {
+            if (Arrays.equals(haystack, i, i + needle.length, needle, 0, needle.length)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Test
+    void testFeeIsWhatTheInputsHoldBeyondTheOutputs() throws Exception {
+        UTXOPool pool = new UTXOPool();
+        Hash256 coinId = Hash256.fromHex("12".repeat(32));
+        pool.addUTXO(new UTXOKey(coinId, 0), new UTXO(Amount.COIN, "sender"));
+        ArrayList<Input> inputs = new ArrayList<>();
+        inputs.add(new Input(coinId, 0, null, keyPair.getPublic()));
+        ArrayList<Output> outputs = new ArrayList<>();
+        outputs.add(new Output(Amount.parse("0.9"), "payee"));
+        Transaction transaction = new Transaction(inputs, outputs);
+        transaction.setFee(50 * Amount.COIN); // as a relayer might claim
+
+        try (UTXOView view = new UTXOView(pool)) {
+            assertEquals(Amount.parse("0.1"), view.feeOf(transaction));
+            outputs.add(new Output(Amount.parse("0.2"), "more"));
+            assertEquals(-1, view.feeOf(transaction)); // outputs exceed the inputs
+        }
+    }
+
+    @Test
+    void testWalletKeysAreCompressedAndShared() throws Exception {
+        KeyPairs wallet = new KeyPairs(); // secp256k1, as wallets use
+        ArrayList<Input> inputs = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            inputs.add(new Input(Hash256.fromHex(String.format("%064x", i + 1)), i, null, wallet.getPublicKey()));
+        }
+        ArrayList<Output> outputs = new ArrayList<>();
+        outputs.add(new Output(Amount.COIN, "address1"));
+        Transaction transaction = new Transaction(inputs, outputs);
+        byte[] signature = transaction.generateDigitalSignature(wallet.getPrivateKey());
+        for (Input input : inputs) {
+            input.setDigitalSignature(signature);
+        }
+        assertEquals(PublicKeyTable.COMPRESSED_SIZE, PublicKeyTable.compress(wallet.getPublicKey()).length);
+
+        Transaction first = roundTrip(transaction);
+        Transaction second = roundTrip(transaction);
+        assertEquals(transaction.getHash(), first.getHash());
+        // one key object and one signature array, however many inputs and copies
+        assertSame(first.getInputs().get(0).getPublicKey(), second.getInputs().get(2).getPublicKey());
+        assertSame(first.getDigitalSignature(), first.getInputs().get(1).getDigitalSignature());
+        Input input = second.getInputs().get(1);
+        assertTrue(input.verifySignature(input.getPublicKey(), second.getSigningBytes()));
+    }
+
+    @Test
+    void testPublicKeyTableKeepsOnlyRecentKeys() {
+        ECPoint generator = ECNamedCurveTable.getParameterSpec("secp256k1").getG();
+        byte[] first = generator.getEncoded(true);
+        PublicKey firstKey = PublicKeyTable.decompress(first);
+        for (int i = 2; i <= PublicKeyTable.CAPACITY + 1; i++) {
+            PublicKeyTable.decompress(generator.multiply(BigInteger.valueOf(i)).normalize().getEncoded(true));
+        }
+        assertTrue(PublicKeyTable.size() <= PublicKeyTable.CAPACITY);
+        // an evicted key decodes again, to an equal key
+        assertEquals(firstKey, PublicKeyTable.decompress(first));
+    }
+
+    private static Transaction roundTrip(Transaction transaction) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(transaction);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (Transaction) in.readObject();
+        }
+    }
+
+    @Test
+    void testSignatureVerifierRejectsBatchWithOneBadSignature() throws Exception {
+        ArrayList<Transaction> transactions = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            ArrayList<Input> inputs = new ArrayList<>();
+            inputs.add(new Input(Hash256.fromHex(String.format("%064x", i)), 0, null, keyPair.getPublic()));
+            ArrayList<Output> outputs = new ArrayList<>();
+            outputs.add(new Output(i + 1, "address1"));
+            Transaction transaction = new Transaction(inputs, outputs);
+            inputs.get(0).setDigitalSignature(transaction.generateDigitalSignature(keyPair.getPrivate()));
+            transactions.add(transaction);
+        }
+        SignatureVerifier verifier = new SignatureVerifier(4);
+        assertTrue(verifier.verifyAll(SignatureVerifier.checksFor(transactions)));
+
+        // another transaction's signature does not sign this one
+        Input tampered = transactions.get(13).getInputs().get(0);
+        tampered.setDigitalSignature(transactions.get(2).getInputs().get(0).getDigitalSignature());
+        assertFalse(verifier.verifyAll(SignatureVerifier.checksFor(transactions)));
+        verifier.shutdown();
+    }
+
+    @Test
+    void testSignatureCacheRemembersVerifiedInputs() throws Exception {
+        ArrayList<Input> inputs = new ArrayList<>();
+        Hash256 spentTxId = Hash256.fromHex("0123456789abcdef".repeat(4));
+        inputs.add(new Input(spentTxId, 0, null, keyPair.getPublic()));
+        inputs.add(new Input(spentTxId, 1, null, keyPair.getPublic()));
+        ArrayList<Output> outputs = new ArrayList<>();
+        outputs.add(new Output(5, "address1"));
+        Transaction transaction = new Transaction(inputs, outputs);
+        byte[] signature = transaction.generateDigitalSignature(keyPair.getPrivate());
+        for (Input input : inputs) {
+            input.setDigitalSignature(signature);
+        }
+
+        SignatureCache cache = new SignatureCache(2);
+        SignatureVerifier verifier = new SignatureVerifier(1, cache);
+        assertTrue(verifier.verifyAll(SignatureVerifier.checksFor(transaction)));
+        assertEquals(2, cache.size());
+        assertTrue(cache.contains(transaction.getHash(), 1, signature));
+        // a different signature for the same input is verified again
+        assertFalse(cache.contains(transaction.getHash(), 1, new byte[] { 1, 2, 3 }));
+
+        cache.add(Hash256.ZERO, 0, signature);
+        assertEquals(2, cache.size());
+        assertFalse(cache.contains(transaction.getHash(), 0, signature));
+        verifier.shutdown();
+    }
+
+    @Test
+    void testCancelledJobStopsSearch() {
+        MiningJob job = new MiningJob(previousHash);
+        job.cancel();
+        mining.setJob(job);
+        // an unreachable target would otherwise search the entire nonce space
+        mining.setDifficultyBits(0x03000001);
+        assertNull(mining.calculateBlockHash(previousHash, System.currentTimeMillis(), "root"));
+        assertTrue(mining.getNonce() <= Mining.CANCEL_CHECK_INTERVAL);
+    }
+
+    @Test
+    void testMiningStatsCountHashes() {
+        MiningStats stats = new MiningStats();
+        mining.setMiningStats(stats);
+        mining.setDifficultyBits(Difficulty.LIMIT_BITS);
+        mining.calculateBlockHash(previousHash, System.currentTimeMillis(), "root");
+
+        // every nonce up to and including the winning one was hashed exactly once
+        MiningStats.Snapshot snapshot = stats.snapshot();
+        assertEquals(mining.getNonce() + 1L, snapshot.getTotalHashes());
+        assertEquals(snapshot.getTotalHashes(), snapshot.getWorkerHashes(0));
+    }
+
+    @Test
+    void testCpuBudgetBacksOffWhileValidating() throws InterruptedException {
+        MiningStats stats = new MiningStats();
+        CpuBudget cpuBudget = new CpuBudget(1.0, 0.25, stats);
+        assertEquals(1.0, cpuBudget.getCurrentMiningShare());
+
+        // validation runs on the caller's thread, as on a peer's connection
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread connection = new Thread(() -> cpuBudget.validate(() -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        connection.start();
+        started.await();
+        assertEquals(0.25, cpuBudget.getCurrentMiningShare());
+        release.countDown();
+        connection.join(5000);
+
+        assertEquals(1, stats.snapshot().getValidations());
+        assertEquals(1.0, cpuBudget.getCurrentMiningShare());
+    }
+
+    @Test
+    void testChangeAndFeeAreExact() {
+        Hash256 spentTxId = Hash256.fromHex("0123456789abcdef".repeat(4));
+        utxoPool.addUTXO(new UTXOKey(spentTxId, 0), new UTXO(Amount.parse("0.3"), "sender"));
+
+        ArrayList<Input> inputs = new ArrayList<>();
+        inputs.add(new Input(spentTxId, 0, null, keyPair.getPublic()));
+        ArrayList<Output> outputs = new ArrayList<>();
+        outputs.add(new Output(Amount.parse("0.1"), "recipient"));
+        Transaction transaction = new Transaction(inputs, outputs);
+        transaction.calculateAndAddChangeOutput(utxoPool, Amount.parse("0.1"), "sender");
+        assertEquals(Amount.parse("0.1"), transaction.getFee());
+        assertEquals(Amount.parse("0.1"), transaction.getOutputs().get(1).getValue());
+
+        // a fee the inputs cannot cover takes what is left and leaves no change
+        ArrayList<Output> largeOutputs = new ArrayList<>();
+        largeOutputs.add(new Output(Amount.parse("0.25"), "recipient"));
+        Transaction large = new Transaction(new ArrayList<>(inputs), largeOutputs);
+        large.calculateAndAddChangeOutput(utxoPool, Amount.parse("0.1"), "sender");
+        assertEquals(Amount.parse("0.05"), large.getFee());
+        assertEquals(1, large.getOutputs().size());
+        assertEquals("1.5", Amount.format(Amount.COIN * 3 / 2));
+    }
+
+    @Test
+    void testAddressesAreNumberedOnce() throws Exception {
+        String address = "1AddressTableTest" + System.nanoTime();
+        UTXO utxo = new UTXO(Amount.COIN, address);
+        Output output = new Output(Amount.COIN, new String(address.toCharArray()));
+        assertEquals(utxo.getAddressId(), output.getAddressId());
+        assertEquals(address, AddressTable.address(utxo.getAddressId()));
+
+        // the serialized form carries the address, not the process-local id
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(utxo);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            UTXO copy = (UTXO) in.readObject();
+            assertEquals(address, copy.getAddress());
+            assertEquals(Amount.COIN, copy.getValue());
+        }
+    }
+
+    @Test
+    void testAddressIdsAreReclaimed() throws Exception {
+        Output kept = new Output(Amount.COIN, "1KeptAddress" + System.nanoTime());
+        int before = AddressTable.size();
+        for (int i = 0; i < 10_000; i++) {
+            new Output(Amount.COIN, "1DroppedAddress" + i);
+        }
+        // once nothing holds them, the dropped addresses give their ids back
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (AddressTable.size() > before && System.currentTimeMillis() < deadline) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertTrue(AddressTable.size() <= before);
+        assertEquals(kept.getAddress(), AddressTable.address(kept.getAddressId()));
+        Output reused = new Output(Amount.COIN, "1ReusingAddress" + System.nanoTime());
+        assertNotEquals(kept.getAddressId(), reused.getAddressId());
+    }
+
+    @Test
+    void testFilesInTheOldFormatAreIgnored() throws Exception {
+        HashMap<UTXOKey, UTXO> utxos = new HashMap<>();
+        utxos.put(new UTXOKey(Hash256.fromHex("12".repeat(32)), 0), new UTXO(Amount.COIN, "owner"));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(utxos);
+        }
+        // stamp the classes with the serialVersionUID they had before the format changed
+        byte[] current = ByteBuffer.allocate(8).putLong(2317709595944805709L).array();
+        byte[] old = ByteBuffer.allocate(8).putLong(2317709595944805708L).array();
+        byte[] stream = bytes.toByteArray();
+        for (int i = 0; i + 8 <= stream.length; i++) {
+            if (Arrays.equals(stream, i, i + 8, current, 0, 8)) {
+                System.arraycopy(old, 0, stream, i, 8);
+            }
+        }
+        File file = File.createTempFile("utxoPool", ".ser");
+        try {
+            Files.write(file.toPath(), stream);
+            assertTrue(FileSaver.loadHashMap(file.getPath()).isEmpty());
+            Files.write(file.toPath(), bytes.toByteArray());
+            assertEquals(utxos.keySet(), FileSaver.<UTXOKey, UTXO>loadHashMap(file.getPath()).keySet());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    void testSnapshotIgnoresLaterBatches() throws Exception {
+        UTXOPool pool = new UTXOPool();
+        UTXOKey spent = new UTXOKey(Hash256.fromHex("11".repeat(32)), 0);
+        UTXOKey created = new UTXOKey(Hash256.fromHex("22".repeat(32)), 0);
+        pool.addUTXO(spent, new UTXO(Amount.COIN, "owner"));
+
+        try (UTXOSnapshot snapshot = pool.snapshot()) {
+            Map<UTXOKey, UTXO> block = new HashMap<>();
+            block.put(spent, null);
+            block.put(created, new UTXO(Amount.COIN, "owner"));
+            pool.apply(block);
+
+            assertTrue(snapshot.containsUTXOKey(spent));
+            assertFalse(snapshot.containsUTXOKey(created));
+            assertEquals(1, snapshot.getUTXOMap().size());
+            assertFalse(pool.containsUTXOKey(spent));
+            assertTrue(pool.containsUTXOKey(created));
+        }
+
+        // writers on several threads lose no updates
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            int thread = t;
+            writers[t] = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    pool.addUTXO(new UTXOKey(Hash256.ZERO, thread * 1000 + i), new UTXO(Amount.COIN, "owner"));
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        assertEquals(4001, pool.getUTXOMap().size());
+    }
+
+    @Test
+    void testUTXOViewCommitsOrDiscardsItsDelta() {
+        UTXOPool pool = new UTXOPool();
+        UTXOKey coin = new UTXOKey(Hash256.fromHex("33".repeat(32)), 0);
+        UTXOKey change = new UTXOKey(Hash256.fromHex("44".repeat(32)), 1);
+        pool.addUTXO(coin, new UTXO(Amount.COIN, "owner"));
+
+        try (UTXOView view = new UTXOView(pool)) {
+            assertTrue(view.spend(coin));
+            assertFalse(view.spend(coin)); // already spent in the view
+            view.addUTXO(change, new UTXO(Amount.COIN, "owner"));
+            assertTrue(pool.containsUTXOKey(coin));
+            assertFalse(pool.containsUTXOKey(change));
+            view.discard();
+            assertTrue(view.containsUTXOKey(coin));
+        }
+
+        try (UTXOView view = new UTXOView(pool)) {
+            UTXOView child = new UTXOView(view);
+            assertTrue(child.spend(coin));
+            child.addUTXO(change, new UTXO(Amount.COIN, "owner"));
+            assertTrue(child.commit());
+            assertEquals(2, view.getDeltaSize());
+            assertTrue(view.commit());
+        }
+        assertFalse(pool.containsUTXOKey(coin));
+        assertTrue(pool.containsUTXOKey(change));
+    }
+
+    @Test
+    void testUTXOViewCommitFailsOnceThePoolMoved() {
+        UTXOPool pool = new UTXOPool();
+        UTXOKey coin = new UTXOKey(Hash256.fromHex("33".repeat(32)), 0);
+        pool.addUTXO(coin, new UTXO(Amount.COIN, "owner"));
+
+        try (UTXOView template = new UTXOView(pool)) {
+            assertTrue(template.spend(coin));
+            template.addUTXO(new UTXOKey(Hash256.fromHex("44".repeat(32)), 0), new UTXO(Amount.COIN, "miner"));
+            // a competing block spends the same coin first
+            try (UTXOView competitor = new UTXOView(pool)) {
+                assertTrue(competitor.spend(coin));
+                competitor.addUTXO(new UTXOKey(Hash256.fromHex("55".repeat(32)), 0), new UTXO(Amount.COIN, "peer"));
+                assertTrue(competitor.commit());
+            }
+            assertFalse(template.commit());
+        }
+        assertNull(pool.getUTXO(new UTXOKey(Hash256.fromHex("44".repeat(32)), 0)));
+        assertNotNull(pool.getUTXO(new UTXOKey(Hash256.fromHex("55".repeat(32)), 0)));
+    }
+
+    @Test
+    void testMappedUTXOStoreSurvivesReopening() throws Exception {
+        File file = File.createTempFile("utxo", ".dat");
+        file.delete();
+        try {
+            // enough entries to grow the table a few times
+            try (MappedUTXOStore store = new MappedUTXOStore(file)) {
+                UTXOPool pool = new UTXOPool(store);
+                for (int i = 0; i < 5000; i++) {
+                    pool.addUTXO(new UTXOKey(Hash256.ZERO, i), new UTXO(i, i % 2 == 0 ? "even" : "odd"));
+                }
+                for (int i = 0; i < 5000; i += 3) {
+                    pool.removeFromUTXOPool(new UTXOKey(Hash256.ZERO, i));
+                }
+            }
+            try (MappedUTXOStore store = new MappedUTXOStore(file)) {
+                UTXOPool pool = new UTXOPool(store);
+                assertEquals(5000 - 1667, pool.size());
+                assertEquals(3333, pool.getUTXOMap().size());
+                assertNull(pool.getUTXO(new UTXOKey(Hash256.ZERO, 3)));
+                UTXO utxo = pool.getUTXO(new UTXOKey(Hash256.ZERO, 4000));
+                assertEquals(4000, utxo.getValue());
+                assertEquals("even", utxo.getAddress());
+            }
+        } finally {
+            file.delete();
+            new File(file.getPath() + ".addresses").delete();
+        }
+    }
+
+    @Test
+    void testMappedUTXOStoreKeepsItsTipUntilChanged() throws Exception {
+        File file = File.createTempFile("utxo", ".dat");
+        file.delete();
+        Hash256 tip = Hash256.fromHex("ab".repeat(32));
+        try {
+            try (MappedUTXOStore store = new MappedUTXOStore(file)) {
+                assertNull(store.getTipHash());
+                store.put(new UTXOKey(Hash256.ZERO, 0), new UTXO(Amount.COIN, "owner"));
+                store.setTipHash(tip);
+            }
+            try (MappedUTXOStore store = new MappedUTXOStore(file)) {
+                assertEquals(tip, store.getTipHash());
+                store.put(new UTXOKey(Hash256.ZERO, 1), new UTXO(Amount.COIN, "owner"));
+                assertNull(store.getTipHash());
+                // as a restart would find it had the process died here
+                try (MappedUTXOStore reopened = new MappedUTXOStore(file)) {
+                    assertNull(reopened.getTipHash());
+                }
+            }
+        } finally {
+            file.delete();
+            new File(file.getPath() + ".addresses").delete();
+        }
+    }
+
+    @Test
+    void testMappedUTXOStoreMissingAnAddressIsEmptied() throws Exception {
+        File file = File.createTempFile("utxo", ".dat");
+        file.delete();
+        File addresses = new File(file.getPath() + ".addresses");
+        try {
+            try (MappedUTXOStore store = new MappedUTXOStore(file)) {
+                store.put(new UTXOKey(Hash256.ZERO, 0), new UTXO(Amount.COIN, "first"));
+                store.put(new UTXOKey(Hash256.ZERO, 1), new UTXO(Amount.COIN, "second"));
+                store.setTipHash(Hash256.fromHex("cd".repeat(32)));
+            }
+            // as a crash can leave it: the records written, the last address cut short
+            try (RandomAccessFile cut = new RandomAccessFile(addresses, "rw")) {
+                cut.setLength(cut.length() - 2);
+            }
+            try (MappedUTXOStore store = new MappedUTXOStore(file)) {
+                assertEquals(0, store.size());
+                assertNull(store.getTipHash());
+                assertNull(store.get(new UTXOKey(Hash256.ZERO, 1)));
+                int[] held = { 0 };
+                store.forEach((key, utxo) -> held[0]++);
+                assertEquals(0, held[0]);
+                store.put(new UTXOKey(Hash256.ZERO, 2), new UTXO(Amount.COIN, "second"));
+            }
+            try (MappedUTXOStore store = new MappedUTXOStore(file)) {
+                assertEquals("second", store.get(new UTXOKey(Hash256.ZERO, 2)).getAddress());
+            }
+        } finally {
+            file.delete();
+            addresses.delete();
+        }
+    }
+
+    @Test
+    void testAddressIndexFollowsBatches() {
+        UTXOPool pool = new UTXOPool();
+        UTXOKey first = new UTXOKey(Hash256.fromHex("55".repeat(32)), 0);
+        UTXOKey second = new UTXOKey(Hash256.fromHex("55".repeat(32)), 1);
+        pool.addUTXO(first, new UTXO(Amount.COIN, "indexed"));
+        pool.addUTXO(new UTXOKey(Hash256.fromHex("66".repeat(32)), 0), new UTXO(Amount.COIN, "someone else"));
+        BitSet owner = new BitSet();
+        owner.set(AddressTable.intern("indexed").getId());
+
+        try (UTXOSnapshot before = pool.snapshot()) {
+            assertEquals(1, before.getUTXOsOf(owner).size()); // indexed by this first query
+            pool.addUTXO(second, new UTXO(2 * Amount.COIN, "indexed"));
+            pool.removeFromUTXOPool(first);
+            assertEquals(Set.of(first), before.getUTXOsOf(owner).keySet());
+        }
+        try (UTXOSnapshot after = pool.snapshot()) {
+            assertEquals(Set.of(second), after.getUTXOsOf(owner).keySet());
+        }
+    }
+
+    @Test
+    void testGenesisBlockMintsWholeCoins() {
+        node.initializeBlockchainComponents();
+        Block genesis = node.createGenesisBlock("genesis owner");
+        Transaction genesisTransaction = genesis.getBlockTransactions().get(0);
+        assertEquals(25 * Amount.COIN, genesisTransaction.getOutputs().get(0).getValue());
+        assertEquals(25 * Amount.COIN,
+                node.getUTXOPool().getUTXO(new UTXOKey(genesisTransaction.getHash(), 0)).getValue());
+    }
+
+    @Test
+    void testConnectBlockOnlyExtendsTheTip() {
+        node.initializeBlockchainComponents();
+        Block genesis = rewardBlock(Hash256.ZERO, "genesis");
+        try (UTXOView view = new UTXOView(node.getUTXOPool())) {
+            assertTrue(view.connectBlock(genesis));
+            assertTrue(node.connectBlock(genesis, view));
+        }
+        // a block on a parent that is no longer the tip changes nothing
+        Block sibling = rewardBlock(Hash256.ZERO, "sibling");
+        try (UTXOView view = new UTXOView(node.getUTXOPool())) {
+            assertTrue(view.connectBlock(sibling));
+            assertFalse(node.connectBlock(sibling, view));
+        }
+        // nor does one whose view predates a block connected meanwhile
+        Block first = rewardBlock(genesis.getBlockHash(), "first");
+        try (UTXOView late = new UTXOView(node.getUTXOPool())) {
+            try (UTXOView view = new UTXOView(node.getUTXOPool())) {
+                assertTrue(view.connectBlock(first));
+                assertTrue(node.connectBlock(first, view));
+            }
+            Block second = rewardBlock(first.getBlockHash(), "second");
+            assertTrue(late.connectBlock(second));
+            assertFalse(node.connectBlock(second, late));
+        }
+        assertEquals(2, node.getBlockchain().getChain().size());
+        assertEquals(2, node.getUTXOPool().size());
+        assertTrue(node.getProcessedBlocks().contains(first.getBlockHash()));
+    }
+
+    @Test
+    void testReorgUndoesOnlyBlocksAboveTheFork() throws Exception {
+        node.initializeBlockchainComponents();
+        int bits = Difficulty.LIMIT_BITS;
+        Block genesis = minedBlock(Hash256.ZERO, bits, 0, coinbase("genesis", "genesis"));
+        Block a1 = minedBlock(genesis.getBlockHash(), bits, 1, coinbase("reward a1", "a1"));
+        Transaction spend = signedSpend(a1.getBlockTransactions().get(0).getHash(), 0, "a2 payee");
+        Block a2 = minedBlock(a1.getBlockHash(), bits, 2, spend, coinbase("reward a2", "a2"));
+        node.adoptChain(new Blockchain(new ArrayList<>(Arrays.asList(genesis, a1, a2))));
+        assertEquals(3, node.getUTXOPool().size());
+
+        Block b1 = minedBlock(genesis.getBlockHash(), bits, 1, coinbase("reward b1", "b1"));
+        Block b2 = minedBlock(b1.getBlockHash(), bits, 2, coinbase("reward b2", "b2"));
+        Block b3 = minedBlock(b2.getBlockHash(), bits, 3, coinbase("reward b3", "b3"));
+        node.adoptChain(new Blockchain(new ArrayList<>(Arrays.asList(genesis, b1, b2, b3))));
+        assertEquals(4, node.getBlockchain().getChain().size());
+        assertEquals(4, node.getUTXOPool().size());
+        assertNull(node.getUTXOPool().getUTXO(new UTXOKey(a2.getBlockTransactions().get(1).getHash(), 0)));
+        assertNotNull(node.getUTXOPool().getUTXO(new UTXOKey(b3.getBlockTransactions().get(0).getHash(), 0)));
+        // the disconnected block's payment waits in the mempool again
+        assertTrue(node.getMempool().getTransactions().contains(spend));
+        assertTrue(node.getProcessedBlocks().contains(b3.getBlockHash()));
+
+        // a chain with an unspendable input changes nothing
+        Transaction theft = signedSpend(Hash256.fromHex("77".repeat(32)), 0, "thief");
+        Block bad = minedBlock(b1.getBlockHash(), bits, 2, theft);
+        Block c3 = minedBlock(bad.getBlockHash(), bits, 3, coinbase("reward c3", "c3"));
+        Block c4 = minedBlock(c3.getBlockHash(), bits, 4, coinbase("reward c4", "c4"));
+        assertThrows(Exception.class, () -> node
+                .adoptChain(new Blockchain(new ArrayList<>(Arrays.asList(genesis, b1, bad, c3, c4)))));
+        // nor does one with a block lacking proof of work, or off the retargeting schedule
+        Block unmined = rewardBlock(b3.getBlockHash(), "unmined");
+        assertThrows(Exception.class, () -> node
+                .adoptChain(new Blockchain(new ArrayList<>(Arrays.asList(genesis, b1, b2, b3, unmined)))));
+        Block easier = minedBlock(b3.getBlockHash(), 0x1f020000, 4, coinbase("reward easier", "easier"));
+        assertThrows(Exception.class, () -> node
+                .adoptChain(new Blockchain(new ArrayList<>(Arrays.asList(genesis, b1, b2, b3, easier)))));
+        // nor one stamped no later than the median of the blocks below it, or far ahead of now
+        Block stale = minedBlock(b3.getBlockHash(), bits, 2, coinbase("reward stale", "stale"));
+        assertThrows(Exception.class, () -> node
+                .adoptChain(new Blockchain(new ArrayList<>(Arrays.asList(genesis, b1, b2, b3, stale)))));
+        Block early = minedBlock(b3.getBlockHash(), bits, System.currentTimeMillis() + 24 * 60 * 60 * 1000L,
+                coinbase("reward early", "early"));
+        assertThrows(Exception.class, () -> node
+                .adoptChain(new Blockchain(new ArrayList<>(Arrays.asList(genesis, b1, b2, b3, early)))));
+        // nor one with no more work than the current chain
+        Block c3Rival = minedBlock(b2.getBlockHash(), bits, 3, coinbase("reward rival", "rival"));
+        assertThrows(Exception.class, () -> node
+                .adoptChain(new Blockchain(new ArrayList<>(Arrays.asList(genesis, b1, b2, c3Rival)))));
+        assertEquals(4, node.getBlockchain().getChain().size());
+        assertEquals(b3.getBlockHash(), node.getBlockchain().getChain().get(3).getBlockHash());
+        assertEquals(4, node.getUTXOPool().size());
+    }
+
+    @Test
+    void testMerkleProofRoundTripsBetweenNodes() throws Exception {
+        node.initializeBlockchainComponents();
+        Node peer = new Node(8081);
+        peer.initializeBlockchainComponents();
+        int bits = Difficulty.LIMIT_BITS;
+        Block genesis = minedBlock(Hash256.ZERO, bits, 0, coinbase("genesis", "genesis"));
+        Transaction spend = signedSpend(genesis.getBlockTransactions().get(0).getHash(), 0, "payee");
+        Block block = minedBlock(genesis.getBlockHash(), bits, 1, spend, coinbase("reward", "miner"));
+        node.adoptChain(new Blockchain(new ArrayList<>(Arrays.asList(genesis, block))));
+        peer.adoptChain(new Blockchain(new ArrayList<>(Arrays.asList(genesis, block))));
+
+        CompletableFuture<MerkleProof> requested = node.requestMerkleProof(block.getBlockHash(), spend.getHash());
+        // what the peer receives, and what it sends back
+        MerkleProofRequest request = (MerkleProofRequest) overTheWire(
+                new MerkleProofRequest(block.getBlockHash(), spend.getHash()));
+        MerkleProofResponse response = (MerkleProofResponse) overTheWire(new MerkleProofResponse(
+                request.getBlockHash(), request.getTransactionId(),
+                peer.getMerkleProof(request.getBlockHash(), request.getTransactionId())));
+
+        // another transaction's proof, or none at all, does not answer the request
+        Hash256 reward = block.getBlockTransactions().get(1).getHash();
+        assertFalse(node.acceptMerkleProof(new MerkleProofResponse(block.getBlockHash(), spend.getHash(),
+                peer.getMerkleProof(block.getBlockHash(), reward))));
+        assertFalse(node.acceptMerkleProof(new MerkleProofResponse(block.getBlockHash(), spend.getHash(), null)));
+        assertNull(peer.getMerkleProof(Hash256.fromHex("99".repeat(32)), spend.getHash()));
+        assertFalse(requested.isDone());
+
+        assertTrue(node.acceptMerkleProof(response));
+        assertTrue(requested.get(5, TimeUnit.SECONDS).verify(spend.getHash(), block.getMerkleRoot()));
+    }
+
+    private static Object overTheWire(Object message) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(message);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return in.readObject();
+        }
+    }
+
+    private Transaction signedSpend(Hash256 txId, int outputIndex, String payee) throws Exception {
+        ArrayList<Input> inputs = new ArrayList<>();
+        inputs.add(new Input(txId, outputIndex, null, keyPair.getPublic()));
+        ArrayList<Output> outputs = new ArrayList<>();
+        outputs.add(new Output(Amount.COIN, payee));
+        Transaction spend = new Transaction(inputs, outputs);
+        inputs.get(0).setDigitalSignature(spend.generateDigitalSignature(keyPair.getPrivate()));
+        return spend;
+    }
+
+    private static Transaction coinbase(String coinbaseData, String payee) {
+        ArrayList<Input> inputs = new ArrayList<>();
+        inputs.add(new Input(coinbaseData, 0, null, null));
+        ArrayList<Output> outputs = new ArrayList<>();
+        outputs.add(new Output(Amount.COIN, payee));
+        return new Transaction(inputs, outputs);
+    }
+
+    // A block with a real merkle root and proof of work for bits
+    private static Block minedBlock(Hash256 previousHash, int bits, long timestamp, Transaction... transactions) {
+        ArrayList<Transaction> blockTransactions = new ArrayList<>(Arrays.asList(transactions));
+        String merkleRoot = new MerkleTree(blockTransactions).getRootHex();
+        HeaderHasher hasher = new HeaderHasher(previousHash.toString(), timestamp, merkleRoot, bits);
+        int[] target = Difficulty.toTargetWords(bits);
+        int nonce = 0;
+        while (!hasher.hashMeetsTarget(nonce, target)) {
+            nonce++;
+        }
+        return new Block(previousHash, "miner", timestamp, blockTransactions, merkleRoot,
+                Hash256.fromHex(hasher.hexDigest()), nonce, bits);
+    }
+
+    @Test
+    void testNextBitsRetargetsByTheLastWindow() {
+        BigInteger initial = Difficulty.toTarget(Difficulty.INITIAL_BITS);
+        long interval = Difficulty.BLOCK_INTERVAL;
+
+        // off a window boundary the tip's target carries over
+        assertEquals(Difficulty.INITIAL_BITS, Difficulty.nextBits(chainSpacedBy(15, interval / 2, Difficulty.INITIAL_BITS)));
+        // blocks twice as fast halve the target, twice as slow double it
+        assertEquals(initial.shiftRight(1),
+                Difficulty.toTarget(Difficulty.nextBits(chainSpacedBy(20, interval / 2, Difficulty.INITIAL_BITS))));
+        assertEquals(initial.shiftLeft(1),
+                Difficulty.toTarget(Difficulty.nextBits(chainSpacedBy(20, interval * 2, Difficulty.INITIAL_BITS))));
+        // a single adjustment moves the target by at most 4x either way
+        assertEquals(initial.shiftRight(2),
+                Difficulty.toTarget(Difficulty.nextBits(chainSpacedBy(20, 0, Difficulty.INITIAL_BITS))));
+        assertEquals(initial.shiftLeft(2),
+                Difficulty.toTarget(Difficulty.nextBits(chainSpacedBy(20, interval * 10, Difficulty.INITIAL_BITS))));
+        // and never past LIMIT_BITS
+        assertEquals(Difficulty.LIMIT_BITS, Difficulty.nextBits(chainSpacedBy(20, interval * 2, Difficulty.LIMIT_BITS)));
+    }
+
+    @Test
+    void testChainWorkOutweighsChainLength() {
+        // 2^256 / (2^240 + 1) hashes to meet the easiest target
+        assertEquals(BigInteger.valueOf(65535), Difficulty.work(Difficulty.LIMIT_BITS));
+        // three blocks at the initial target are more work than a hundred at the limit
+        List<Block> harder = chainSpacedBy(3, 1, Difficulty.INITIAL_BITS).getChain();
+        List<Block> longer = chainSpacedBy(100, 1, Difficulty.LIMIT_BITS).getChain();
+        assertTrue(Difficulty.chainWork(harder).compareTo(Difficulty.chainWork(longer)) > 0);
+
+        // median of the last eleven timestamps, or of all of a shorter chain
+        assertEquals(1, Difficulty.medianTimePast(chainSpacedBy(3, 1, Difficulty.INITIAL_BITS).getChain()));
+        assertEquals(94, Difficulty.medianTimePast(longer));
+    }
+
+    // length blocks at bits, each spacing milliseconds after the one before
+    private static Blockchain chainSpacedBy(int length, long spacing, int bits) {
+        Blockchain blockchain = new Blockchain();
+        Hash256 previousHash = Hash256.ZERO;
+        for (int i = 0; i < length; i++) {
+            Block block = rewardBlock(previousHash, "block" + i);
+            block = new Block(previousHash, "miner", i * spacing, block.getBlockTransactions(), "",
+                    block.getBlockHash(), 0, bits);
+            blockchain.addBlock(block);
+            previousHash = block.getBlockHash();
+        }
+        return blockchain;
+    }
+
+    @Test
+    void testRemoteMinerSolvesWorkFromTheWorkServer() throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        WorkServer workServer = new WorkServer(port);
+        Thread serverThread = new Thread(workServer);
+        serverThread.setDaemon(true);
+        serverThread.start();
+        try {
+            // easy enough (one block in 2^16 hashes) that every share is a block
+            BlockTemplate easy = workTemplate("easy", Difficulty.LIMIT_BITS);
+            workServer.publish(easy);
+            Thread minerThread = new Thread(new RemoteMiner("127.0.0.1", port, "test-miner", HashingEngine.SCALAR));
+            minerThread.setDaemon(true);
+            minerThread.start();
+            long deadline = System.currentTimeMillis() + 30_000;
+            while (easy.getWinner().get() == null && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            ParallelMiner.Solution solution = easy.getWinner().get();
+            assertNotNull(solution);
+            HeaderHasher solved = new HeaderHasher(easy.getHeaders().headerPrefix(solution.getTimestamp(),
+                    solution.getExtraNonce()));
+            assertTrue(solved.hashMeetsTarget(solution.getNonce(), Difficulty.toTargetWords(Difficulty.LIMIT_BITS)));
+            assertTrue(solution.getExtraNonce() < 0); // handed out by the server, not the local search
+
+            // a hand-driven miner on a template nobody will solve during the test
+            BlockTemplate hard = workTemplate("hard", 0x1d010000);
+            workServer.publish(hard);
+            try (Socket socket = new Socket("127.0.0.1", port)) {
+                ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+                out.flush();
+                ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+                out.writeObject(new WorkRequest("test-client"));
+                out.flush();
+                WorkTemplate work;
+                do {
+                    work = (WorkTemplate) in.readObject();
+                } while (!work.getPreviousHash().equals(hard.getPreviousHash()));
+
+                int[] shareTarget = Difficulty.toTargetWords(work.getShareBits());
+                HeaderHasher hasher = new HeaderHasher(work.getHeaderPrefix());
+                int missingNonce = 0;
+                while (hasher.hashMeetsTarget(missingNonce, shareTarget)) {
+                    missingNonce++;
+                }
+                WorkResult invalid = submitShare(out, in, work.getJobId(), missingNonce);
+                assertFalse(invalid.isAccepted());
+                assertEquals("Share misses the share target", invalid.getMessage());
+
+                workServer.publish(workTemplate("next", 0x1d010000));
+                WorkResult stale = submitShare(out, in, work.getJobId(), missingNonce + 1);
+                assertFalse(stale.isAccepted());
+                assertEquals("Stale job", stale.getMessage());
+            }
+        } finally {
+            workServer.shutdown();
+        }
+    }
+
+    private static BlockTemplate workTemplate(String previousHash, int bits) {
+        HeaderTemplate headers = (timestamp, extraNonce) -> Block.headerPrefix(previousHash, timestamp,
+                "root" + extraNonce, bits);
+        return new BlockTemplate(previousHash, bits, 1, headers, null);
+    }
+
+    // Sends a share and returns the server's verdict, skipping work pushed meanwhile
+    private static WorkResult submitShare(ObjectOutputStream out, ObjectInputStream in, long jobId, int nonce)
+            throws Exception {
+        out.writeObject(new WorkSubmission(jobId, nonce));
+        out.flush();
+        Object received;
+        do {
+            received = in.readObject();
+        } while (!(received instanceof WorkResult));
+        return (WorkResult) received;
+    }
+
+    private static Block rewardBlock(Hash256 previousHash, String tag) {
+        ArrayList<Input> inputs = new ArrayList<>();
+        inputs.add(new Input("reward " + tag, 0, null, null));
+        ArrayList<Output> outputs = new ArrayList<>();
+        outputs.add(new Output(Amount.COIN, tag));
+        ArrayList<Transaction> transactions = new ArrayList<>();
+        transactions.add(new Transaction(inputs, outputs));
+        Hash256 blockHash = transactions.get(0).getHash(); // stands in for a mined hash
+        return new Block(previousHash, "miner", 0, transactions, "", blockHash, 0, 0);
     }
 
     @Test
     void testHalveMinerReward() {
         node.halveMinerReward();
-        assertEquals(1, node.getMinerReward());
+        assertEquals(Amount.COIN, node.getMinerReward());
     }
 
     @Test